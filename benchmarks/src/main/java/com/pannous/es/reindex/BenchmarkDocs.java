@@ -0,0 +1,51 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Creates documents of a fixed size and scroll pages as returned from the
+ * search api of elasticsearch 1.x
+ *
+ * @author Peter Karich
+ */
+class BenchmarkDocs {
+
+    private static final String WORDS = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod "
+            + "tempor incididunt ut labore et dolore magna aliqua ";
+
+    /**
+     * Returns a JSON document of roughly the specified size in bytes
+     */
+    static String doc(int i, int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size - 60) {
+            text.append(WORDS);
+        }
+        text.setLength(Math.max(0, size - 60));
+        return "{ \"name\" : \"tweet " + i + "\", \"count\" : " + i + ", \"text\" : \"" + text + "\"}";
+    }
+
+    /**
+     * Returns a scroll response with the specified number of hits
+     */
+    static byte[] scrollPage(int hitsPerPage, int docSize, long totalHits) throws IOException {
+        XContentBuilder b = XContentFactory.jsonBuilder().startObject().
+                field("_scroll_id", "c2Nhbjs1OzE6bnJGM0xpX0VTZmU1SWNLWUR6VU5GZzs").
+                field("took", 3).
+                field("timed_out", false).
+                startObject("_shards").field("total", 5).field("successful", 5).field("failed", 0).endObject().
+                startObject("hits").field("total", totalHits).field("max_score", 0).startArray("hits");
+        for (int i = 0; i < hitsPerPage; i++) {
+            b.startObject().
+                    field("_index", "tweets").
+                    field("_type", "tweet").
+                    field("_id", "id" + i).
+                    field("_score", 0).
+                    rawField("_source", doc(i, docSize).getBytes("UTF-8")).
+                    endObject();
+        }
+        return b.endArray().endObject().endObject().bytes().toBytes();
+    }
+}
@@ -0,0 +1,49 @@
+package com.pannous.es.reindex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Creates the index requests of one page like ReIndexAction.bulkUpdate and
+ * serializes the bulk request as it would be sent over the transport.
+ *
+ * @author Peter Karich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkRequestBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int docSize;
+    @Param({"100", "1000"})
+    int hitsPerPage;
+    private MySearchHits hits;
+    private ReIndexAction action;
+
+    @Setup public void setUp() throws IOException {
+        MySearchResponseJson rsp = new MySearchResponseJson(hitsPerPage, false);
+        rsp.parsePage(new ByteArrayInputStream(BenchmarkDocs.scrollPage(hitsPerPage, docSize, 1000000)));
+        hits = MySearchHitList.copy(rsp.hits(), hitsPerPage);
+        action = new ReIndexAction(ImmutableSettings.settingsBuilder().build(), null, null);
+    }
+
+    @Benchmark public int bulkRequest() throws IOException {
+        BulkRequest bulk = new BulkRequest();
+        for (IndexRequest request : action.createRequests(hits, "newtweets", "tweet", false)) {
+            bulk.add(request);
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        bulk.writeTo(out);
+        return out.size();
+    }
+}
@@ -0,0 +1,42 @@
+package com.pannous.es.reindex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parses a recorded scroll page like MySearchResponseJson.doScoll does after
+ * the HTTP request.
+ *
+ * @author Peter Karich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonScrollParseBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int docSize;
+    @Param({"100", "1000"})
+    int hitsPerPage;
+    private byte[] page;
+    private MySearchResponseJson rsp;
+
+    @Setup public void setUp() throws IOException {
+        page = BenchmarkDocs.scrollPage(hitsPerPage, docSize, 1000000);
+        rsp = new MySearchResponseJson(hitsPerPage, false);
+    }
+
+    @Benchmark public long parsePage() throws IOException {
+        rsp.parsePage(new ByteArrayInputStream(page));
+        long bytes = 0;
+        for (MySearchHit hit : rsp.hits().getHits()) {
+            bytes += ReIndexAction.sourceRef(hit).length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,82 @@
+package com.pannous.es.reindex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reindexes a whole index within an embedded local node.
+ *
+ * @author Peter Karich
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReIndexBenchmark {
+
+    static final String SOURCE = "oldtweets";
+    static final String TARGET = "tweets";
+    @Param({"100", "1000", "10000"})
+    int docSize;
+    @Param({"100", "1000"})
+    int hitsPerPage;
+    @Param({"20000"})
+    int docs;
+    @Param({"1", "4"})
+    int bulkThreads;
+    private File dataDir;
+    private Node node;
+    private Client client;
+    private ReIndexAction action;
+
+    @Setup(Level.Trial) public void startNode() throws IOException {
+        dataDir = Files.createTempDirectory("reindex-bench").toFile();
+        node = NodeBuilder.nodeBuilder().local(true).settings(ImmutableSettings.settingsBuilder().
+                put("cluster.name", "reindex-bench").
+                put("path.data", dataDir.getAbsolutePath()).
+                put("http.enabled", false).
+                put("index.number_of_shards", 2).
+                put("index.number_of_replicas", 0)).node();
+        client = node.client();
+        client.admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
+        action = new ReIndexAction(ImmutableSettings.settingsBuilder().build(), client, null);
+
+        for (int i = 0; i < docs; i += 1000) {
+            BulkRequestBuilder bulk = client.prepareBulk();
+            for (int j = i; j < Math.min(docs, i + 1000); j++) {
+                bulk.add(client.prepareIndex(SOURCE, "tweet", "id" + j).setSource(BenchmarkDocs.doc(j, docSize)));
+            }
+            bulk.execute().actionGet();
+        }
+        client.admin().indices().prepareRefresh(SOURCE).execute().actionGet();
+    }
+
+    @Setup(Level.Iteration) public void deleteTarget() {
+        if (client.admin().indices().prepareExists(TARGET).execute().actionGet().isExists())
+            client.admin().indices().prepareDelete(TARGET).execute().actionGet();
+    }
+
+    @TearDown(Level.Trial) public void stopNode() {
+        node.close();
+        FileSystemUtils.deleteRecursively(dataDir);
+    }
+
+    @Benchmark public int reindex() {
+        SearchResponse sr = action.createScrollSearch(SOURCE, "tweet", null, hitsPerPage, false, 1, client).
+                execute().actionGet();
+        return action.reindex(new MySearchResponseES(client, sr, 1), TARGET, "tweet", false, 0,
+                bulkThreads, bulkThreads, client);
+    }
+}
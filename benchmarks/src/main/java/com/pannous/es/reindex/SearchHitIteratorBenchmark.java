@@ -0,0 +1,79 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Iterates over the hits of a page from the local cluster. The hits are
+ * created for every page as it happens when a scroll response is read from
+ * the transport. Compares the stored source (sourceRef) with the copied and
+ * decompressed source (source).
+ *
+ * @author Peter Karich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchHitIteratorBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int docSize;
+    @Param({"100", "1000"})
+    int hitsPerPage;
+    @Param({"false", "true"})
+    boolean compressed;
+    private byte[][] sources;
+
+    @Setup public void setUp() throws IOException {
+        sources = new byte[hitsPerPage][];
+        for (int i = 0; i < hitsPerPage; i++) {
+            byte[] source = BenchmarkDocs.doc(i, docSize).getBytes("UTF-8");
+            if (compressed)
+                source = CompressorFactory.defaultCompressor().compress(source, 0, source.length);
+            sources[i] = source;
+        }
+    }
+
+    private MySearchResponseES createPage() {
+        InternalSearchHit[] hits = new InternalSearchHit[hitsPerPage];
+        for (int i = 0; i < hitsPerPage; i++) {
+            hits[i] = new InternalSearchHit(i, "id" + i, new StringText("tweet"),
+                    Collections.<String, SearchHitField>emptyMap());
+            hits[i].sourceRef(new BytesArray(sources[i]));
+        }
+        InternalSearchResponse internal = new InternalSearchResponse(
+                new InternalSearchHits(hits, 1000000, 0), null, null, null, false, null);
+        SearchResponse sr = new SearchResponse(internal, "scroll", 5, 5, 3, ShardSearchFailure.EMPTY_ARRAY);
+        return new MySearchResponseES(null, sr, 1);
+    }
+
+    @Benchmark public long sourceRef() {
+        long bytes = 0;
+        for (MySearchHit hit : createPage().hits().getHits()) {
+            bytes += ReIndexAction.sourceRef(hit).length();
+        }
+        return bytes;
+    }
+
+    @Benchmark public long source() {
+        long bytes = 0;
+        for (MySearchHit hit : createPage().hits().getHits()) {
+            bytes += hit.source().length;
+        }
+        return bytes;
+    }
+}
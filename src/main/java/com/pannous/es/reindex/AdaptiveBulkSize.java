@@ -0,0 +1,102 @@
+package com.pannous.es.reindex;
+
+/**
+ * Tunes the size of the bulk requests from the measured bulk latency. The
+ * size grows while the bulks are faster than the target latency and shrinks
+ * if they are slower. If the target cluster rejects documents (full bulk queue
+ * or status 429) the size is halved and a delay between the bulks is
+ * introduced which is reduced again while the cluster keeps up.
+ *
+ * @author Peter Karich
+ */
+public class AdaptiveBulkSize {
+
+    static final long MAX_DELAY_MILLIS = 10000;
+    private final long targetMillis;
+    private final int minDocs;
+    private final int maxDocs;
+    private final long minBytes;
+    private final long maxBytes;
+    private int docs;
+    private long bytes;
+    private long delayMillis;
+    private long rejections;
+
+    /**
+     * @param targetMillis the latency of one bulk request to reach
+     * @param maxBytes the upper limit of the bytes of one bulk
+     */
+    public AdaptiveBulkSize(long targetMillis, int minDocs, int maxDocs, long maxBytes) {
+        if (targetMillis <= 0)
+            throw new IllegalArgumentException("targetMillis has to be positive but was " + targetMillis);
+        if (minDocs < 1 || maxDocs < minDocs)
+            throw new IllegalArgumentException("invalid bulk size range " + minDocs + " to " + maxDocs);
+        this.targetMillis = targetMillis;
+        this.minDocs = minDocs;
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.minBytes = Math.max(1, maxBytes / 64);
+        this.docs = Math.max(minDocs, Math.min(maxDocs, 500));
+        this.bytes = Math.max(minBytes, maxBytes / 4);
+    }
+
+    /**
+     * The number of documents the next bulk request should contain
+     */
+    public synchronized int bulkDocs() {
+        return docs;
+    }
+
+    /**
+     * The number of source bytes the next bulk request should contain
+     */
+    public synchronized long bulkBytes() {
+        return bytes;
+    }
+
+    /**
+     * The time to wait before the next bulk request is sent
+     */
+    public synchronized long delayMillis() {
+        return delayMillis;
+    }
+
+    public synchronized long rejections() {
+        return rejections;
+    }
+
+    /**
+     * Called after every bulk request with its latency and the number of
+     * documents which were rejected from the target cluster.
+     */
+    public synchronized void onBulk(long tookMillis, int rejectedDocs) {
+        if (rejectedDocs > 0) {
+            onRejected();
+            return;
+        }
+
+        delayMillis = delayMillis < 10 ? 0 : delayMillis / 2;
+        if (tookMillis > targetMillis * 3 / 2)
+            scale(0.75);
+        else if (tookMillis < targetMillis * 3 / 4)
+            scale(1.25);
+    }
+
+    /**
+     * Called if the whole bulk request or some of its documents were rejected
+     */
+    public synchronized void onRejected() {
+        rejections++;
+        delayMillis = Math.min(MAX_DELAY_MILLIS, Math.max(100, delayMillis * 2));
+        scale(0.5);
+    }
+
+    private void scale(double factor) {
+        docs = (int) Math.max(minDocs, Math.min(maxDocs, Math.round(docs * factor)));
+        bytes = Math.max(minBytes, Math.min(maxBytes, Math.round(bytes * factor)));
+    }
+
+    @Override public synchronized String toString() {
+        return "docs:" + docs + ", bytes:" + bytes + ", delay:" + delayMillis + "ms, rejections:" + rejections;
+    }
+}
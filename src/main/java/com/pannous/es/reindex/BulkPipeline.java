@@ -0,0 +1,77 @@
+package com.pannous.es.reindex;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Executes the bulk requests of a reindex in background threads so that the
+ * next scroll page can be fetched while the previous pages are indexed. At most
+ * prefetchPages + bulkThreads pages are held in memory - if all are in use the
+ * scrolling thread blocks until a worker is done.
+ *
+ * @author Peter Karich
+ */
+class BulkPipeline {
+
+    private final ExecutorService executor;
+    private final Semaphore pages;
+    private final int maxPages;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    BulkPipeline(Settings settings, int prefetchPages, int bulkThreads) {
+        if (bulkThreads < 1)
+            throw new IllegalArgumentException("bulkThreads has to be positive but was " + bulkThreads);
+        maxPages = Math.max(0, prefetchPages) + bulkThreads;
+        pages = new Semaphore(maxPages);
+        executor = Executors.newFixedThreadPool(bulkThreads,
+                EsExecutors.daemonThreadFactory(settings, "reindex_bulk"));
+    }
+
+    /**
+     * Queues the specified bulk task. Blocks if the queue is full.
+     */
+    void submit(final Runnable task) throws InterruptedException {
+        pages.acquire();
+        try {
+            checkFailure();
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        pages.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            pages.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Waits until all queued tasks are finished and rethrows the first failure
+     * of a worker, if any.
+     */
+    void awaitCompletion() throws InterruptedException {
+        pages.acquire(maxPages);
+        pages.release(maxPages);
+        checkFailure();
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private void checkFailure() {
+        Throwable ex = failure.get();
+        if (ex != null)
+            throw new RuntimeException("Bulk indexing failed: " + ex.getMessage(), ex);
+    }
+}
@@ -0,0 +1,67 @@
+package com.pannous.es.reindex;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * The outcome of one bulk request.
+ *
+ * @author Peter Karich
+ */
+class BulkResult {
+
+    private final List<Failure> failed = new ArrayList<Failure>();
+    private int rejected;
+    private int versionConflicts;
+
+    /**
+     * Adds a failed document. A version conflict is only counted.
+     */
+    void addFailed(IndexRequest request, RestStatus status, String message) {
+        if (status == RestStatus.CONFLICT) {
+            versionConflicts++;
+            return;
+        }
+        failed.add(new Failure(request, status, message));
+        if (status == RestStatus.TOO_MANY_REQUESTS)
+            rejected++;
+    }
+
+    /**
+     * The failed documents
+     */
+    List<Failure> failed() {
+        return failed;
+    }
+
+    /**
+     * The number of failed documents which were rejected because the target
+     * cluster was overloaded
+     */
+    int rejected() {
+        return rejected;
+    }
+
+    /**
+     * The number of documents which the target rejected as it has a newer
+     * version or, for op_type create, the document already
+     */
+    int versionConflicts() {
+        return versionConflicts;
+    }
+
+    static class Failure {
+
+        final IndexRequest request;
+        final RestStatus status;
+        final String message;
+
+        Failure(IndexRequest request, RestStatus status, String message) {
+            this.request = request;
+            this.status = status;
+            this.message = message;
+        }
+    }
+}
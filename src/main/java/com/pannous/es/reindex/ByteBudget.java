@@ -0,0 +1,45 @@
+package com.pannous.es.reindex;
+
+/**
+ * Limits the bytes of the documents which are fetched but not yet indexed.
+ * The scrolling threads block in acquire until the bulk threads released
+ * enough bytes. A batch which is larger than the whole budget is accepted
+ * when nothing else is buffered, so that an oversized document cannot block
+ * the reindex forever.
+ *
+ * @author Peter Karich
+ */
+class ByteBudget {
+
+    private final long maxBytes;
+    private long used;
+
+    ByteBudget(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes has to be positive but was " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    synchronized long used() {
+        return used;
+    }
+
+    /**
+     * Waits until the specified bytes fit into the budget
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (used > 0 && used + bytes > maxBytes) {
+            wait();
+        }
+        used += bytes;
+    }
+
+    synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,13 @@
+package com.pannous.es.reindex;
+
+/**
+ * A scroll which can free its resources on the searched cluster before all
+ * hits were fetched, e.g. if the reindex job was cancelled. Optional for a
+ * MySearchResponse, whose scroll otherwise expires after its keep time.
+ *
+ * @author Peter Karich
+ */
+public interface ClearableScroll {
+
+    void clearScroll();
+}
@@ -0,0 +1,72 @@
+package com.pannous.es.reindex;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.VersionType;
+
+/**
+ * Appends the documents which could not be indexed to a local file. The file
+ * is in the bulk format so that it can be fed again with
+ * curl -XPOST localhost:9200/_bulk --data-binary @file
+ *
+ * @author Peter Karich
+ */
+class DeadLetterFile implements Closeable {
+
+    private final File file;
+    private OutputStream out;
+    private long count;
+
+    DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    File file() {
+        return file;
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    synchronized void write(IndexRequest request) throws IOException {
+        if (out == null)
+            out = new BufferedOutputStream(new FileOutputStream(file, true));
+
+        XContentBuilder action = XContentFactory.jsonBuilder().startObject().
+                startObject(request.opType() == IndexRequest.OpType.CREATE ? "create" : "index").
+                field("_index", request.index()).
+                field("_type", request.type()).
+                field("_id", request.id());
+        if (request.parent() != null)
+            action.field("_parent", request.parent());
+        if (request.version() != Versions.MATCH_ANY)
+            action.field("_version", request.version());
+        if (request.versionType() != VersionType.INTERNAL)
+            action.field("_version_type", request.versionType().name().toLowerCase(Locale.ROOT));
+        action.endObject().endObject();
+        action.bytes().writeTo(out);
+        out.write('\n');
+        CompressorFactory.uncompressIfNeeded(request.source()).writeTo(out);
+        out.write('\n');
+        out.flush();
+        count++;
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.hash.Hasher;
+import org.elasticsearch.common.hash.Hashing;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * The 64 bit hashes of the documents a job already finds in the target index
+ * or already sent, in an open addressing table of longs (about 16 bytes per
+ * document). A document is skipped if its hash is already contained, i.e. if
+ * the target has the same index, type, id and source. Thread safe.
+ *
+ * @author Peter Karich
+ */
+class DigestSet {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+    private long[] table;
+    private int size;
+    private boolean containsZero;
+
+    DigestSet(int expectedSize) {
+        table = new long[capacity(expectedSize)];
+    }
+
+    private static int capacity(long expectedSize) {
+        int capacity = 16;
+        // at most half full
+        while (capacity < expectedSize * 2 && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static long hash(String index, String type, String id, BytesReference source) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(index.length()).putUnencodedChars(index);
+        hasher.putInt(type.length()).putUnencodedChars(type);
+        hasher.putInt(id.length()).putUnencodedChars(id);
+        try {
+            BytesRef bytes = CompressorFactory.uncompressIfNeeded(source).toBytesRef();
+            hasher.putBytes(bytes.bytes, bytes.offset, bytes.length);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot uncompress source of " + id, ex);
+        }
+        return hasher.hash().asLong();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean contains(long hash) {
+        if (hash == 0)
+            return containsZero;
+        int mask = table.length - 1;
+        for (int i = (int) hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == hash)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns false if the hash was already contained
+     */
+    synchronized boolean add(long hash) {
+        if (hash == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+        int mask = table.length - 1;
+        int i = (int) hash & mask;
+        for (; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == hash)
+                return false;
+        }
+        if (size >= table.length * 3 / 4) {
+            if (table.length >= MAX_CAPACITY)
+                throw new IllegalStateException("Too many documents for skipUnchanged: " + size);
+            grow(table.length << 1);
+            return add(hash);
+        }
+        table[i] = hash;
+        size++;
+        return true;
+    }
+
+    private void grow(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        int mask = capacity - 1;
+        for (long hash : old) {
+            if (hash == 0)
+                continue;
+            int i = (int) hash & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = hash;
+        }
+    }
+
+    /**
+     * Adds the hashes of all documents of the specified index and type of the
+     * local cluster. Does nothing if the index does not exist. The documents
+     * are hashed with the specified name, which is also the index of the bulk
+     * requests, even if it is an alias.
+     */
+    void load(Client client, String index, String type, int hitsPerPage) {
+        if (!client.admin().indices().prepareExists(index).execute().actionGet().isExists())
+            return;
+        SearchResponse rsp = client.prepareSearch(index).setTypes(type).setSearchType(SearchType.SCAN).
+                setSize(hitsPerPage).setScroll(TimeValue.timeValueMinutes(5)).execute().actionGet();
+        String scrollId = rsp.getScrollId();
+        try {
+            synchronized (this) {
+                long expected = size + rsp.getHits().totalHits();
+                if (capacity(expected) > table.length)
+                    grow(capacity(expected));
+            }
+            while (true) {
+                rsp = client.prepareSearchScroll(scrollId).setScroll(TimeValue.timeValueMinutes(5)).
+                        execute().actionGet();
+                scrollId = rsp.getScrollId();
+                if (rsp.getHits().hits().length == 0)
+                    break;
+                for (SearchHit hit : rsp.getHits()) {
+                    if (hit.sourceRef() != null)
+                        add(hash(index, hit.type(), hit.id(), hit.sourceRef()));
+                }
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        }
+    }
+}
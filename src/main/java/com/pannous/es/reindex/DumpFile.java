@@ -0,0 +1,146 @@
+package com.pannous.es.reindex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressorFactory;
+
+/**
+ * Appends the hits to a local file instead of indexing them, e.g. for an
+ * offline snapshot which can be loaded into several clusters with
+ * MySearchResponseFile. The file starts with a header (magic, format version)
+ * followed by one chunk per bulk: the length of the compressed data, the
+ * number of documents, the length of the uncompressed data and the deflate
+ * compressed documents. A document is its id, its parent (flag + id), its
+ * version and the length prefixed, uncompressed source. The chunks are
+ * collected in a large buffer and written sequentially with a file channel.
+ *
+ * @author Peter Karich
+ */
+class DumpFile implements Closeable {
+
+    static final int MAGIC = 0x52494458;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int CHUNK_HEADER_BYTES = 12;
+    private static final int BUFFER_BYTES = 4 << 20;
+    private final File file;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long docs;
+    private long bytes;
+
+    DumpFile(File file) {
+        this.file = file;
+    }
+
+    File file() {
+        return file;
+    }
+
+    synchronized long docs() {
+        return docs;
+    }
+
+    /**
+     * The compressed bytes written from this instance
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Appends the hits as one chunk. Hits without id or source are skipped.
+     */
+    void write(MySearchHits hits) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        int count = 0;
+        for (MySearchHit hit : hits.getHits()) {
+            BytesReference source = ReIndexAction.sourceRef(hit);
+            if (hit.id() == null || hit.id().isEmpty() || source == null)
+                continue;
+            source = CompressorFactory.uncompressIfNeeded(source);
+            out.writeUTF(hit.id());
+            out.writeBoolean(hit.parent() != null && !hit.parent().isEmpty());
+            if (hit.parent() != null && !hit.parent().isEmpty())
+                out.writeUTF(hit.parent());
+            out.writeLong(hit.version());
+            out.writeInt(source.length());
+            source.writeTo(out);
+            count++;
+        }
+        out.flush();
+        if (count == 0)
+            return;
+
+        // compress outside of the lock so that several bulk threads can write
+        int uncompressed = raw.size();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(uncompressed / 4 + 16);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(compressed, deflater);
+            raw.writeTo(deflate);
+            deflate.finish();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(compressed.toByteArray(), count, uncompressed);
+    }
+
+    private synchronized void writeChunk(byte[] data, int count, int uncompressed) throws IOException {
+        if (channel == null)
+            open();
+        if (buffer.remaining() < CHUNK_HEADER_BYTES + data.length)
+            flush();
+        buffer.putInt(data.length).putInt(count).putInt(uncompressed);
+        if (buffer.remaining() >= data.length) {
+            buffer.put(data);
+        } else {
+            // larger than the buffer => write it directly
+            flush();
+            writeFully(ByteBuffer.wrap(data));
+        }
+        docs += count;
+        bytes += CHUNK_HEADER_BYTES + data.length;
+    }
+
+    private void open() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        if (channel.size() == 0)
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+                channel = null;
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * Computes the target index of a document from its source, e.g.
+ * logs-{@timestamp|yyyy.MM} or users-{address.country}. A placeholder is
+ * replaced with the value of the field which is formatted as date if a pattern
+ * follows the pipe. Dates are read as milliseconds or in the dateOptionalTime
+ * format. The field values are read while the source is parsed, without
+ * building a map.
+ *
+ * @author Peter Karich
+ */
+public class IndexNameTemplate {
+
+    private static final DateTimeFormatter DATE_PARSER = Joda.forPattern("dateOptionalTime").parser().withZoneUTC();
+    private final String template;
+    // literals at even and placeholders at odd positions
+    private final List<Object> parts = new ArrayList<Object>();
+
+    public IndexNameTemplate(String template) {
+        this.template = template;
+        int start = 0;
+        while (true) {
+            int open = template.indexOf('{', start);
+            if (open < 0) {
+                parts.add(template.substring(start));
+                break;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0)
+                throw new IllegalArgumentException("Missing } in index template " + template);
+            parts.add(template.substring(start, open));
+            parts.add(new Placeholder(template.substring(open + 1, close)));
+            start = close + 1;
+        }
+        if (parts.size() == 1)
+            throw new IllegalArgumentException("No {field} in index template " + template);
+    }
+
+    /**
+     * Returns the index name for the source or null if a field is missing
+     */
+    public String resolve(BytesReference source) throws IOException {
+        String[] values = new String[parts.size()];
+        int missing = parts.size() / 2;
+        XContentParser parser = XContentHelper.createParser(source);
+        try {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT)
+                return null;
+            missing = readValues(parser, "", values, missing);
+        } finally {
+            parser.close();
+        }
+        if (missing > 0)
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i % 2 == 0)
+                sb.append((String) parts.get(i));
+            else
+                sb.append(((Placeholder) parts.get(i)).format(values[i]));
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private int readValues(XContentParser parser, String prefix, String[] values, int missing) throws IOException {
+        XContentParser.Token token;
+        while (missing > 0 && (token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            String path = prefix + parser.currentName();
+            token = parser.nextToken();
+            if (token == XContentParser.Token.START_OBJECT && isParent(path + ".")) {
+                missing = readValues(parser, path + ".", values, missing);
+                continue;
+            }
+            for (int i = 1; i < parts.size(); i += 2) {
+                if (values[i] == null && path.equals(((Placeholder) parts.get(i)).field) && token.isValue()) {
+                    values[i] = parser.text();
+                    missing--;
+                }
+            }
+            parser.skipChildren();
+        }
+        return missing;
+    }
+
+    private boolean isParent(String prefix) {
+        for (int i = 1; i < parts.size(); i += 2) {
+            if (((Placeholder) parts.get(i)).field.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    @Override public String toString() {
+        return template;
+    }
+
+    private static class Placeholder {
+
+        final String field;
+        final DateTimeFormatter dateFormat;
+
+        Placeholder(String str) {
+            int index = str.indexOf('|');
+            field = index < 0 ? str.trim() : str.substring(0, index).trim();
+            dateFormat = index < 0 ? null : Joda.forPattern(str.substring(index + 1).trim()).printer().withZoneUTC();
+        }
+
+        String format(String value) {
+            if (dateFormat == null)
+                return value;
+            long millis;
+            try {
+                millis = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                millis = DATE_PARSER.parseMillis(value);
+            }
+            return dateFormat.print(millis);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Splits the values of a numeric or date field into ranges of the same width
+ * which can be read in parallel, each sorted by the field. The documents
+ * without the field are read in an additional partition. The progress is the
+ * part of the key space which is already read.
+ *
+ * @author Peter Karich
+ */
+public class KeyRangePartitions {
+
+    private final String field;
+    private final List<Partition> partitions = new ArrayList<Partition>();
+
+    KeyRangePartitions(String field) {
+        this.field = field;
+    }
+
+    /**
+     * Reads the minimum and maximum of the field and creates at most count
+     * ranges between them plus the partition for the documents without the
+     * field
+     */
+    public static KeyRangePartitions create(Client client, String index, String type, String field, String filter,
+            int count) {
+        Number min = findBound(client, index, type, field, filter, SortOrder.ASC);
+        Number max = findBound(client, index, type, field, filter, SortOrder.DESC);
+        KeyRangePartitions partitions = new KeyRangePartitions(field);
+        if (min != null && max != null)
+            partitions.split(min, max, count);
+        partitions.partitions.add(partitions.new Partition(0, 0, false, true));
+        return partitions;
+    }
+
+    private static Number findBound(Client client, String index, String type, String field, String filter,
+            SortOrder order) {
+        SearchResponse rsp = client.prepareSearch(index).setTypes(type).setSize(1).setNoFields().
+                setPostFilter(ReIndexAction.andFilter(filter, ReIndexAction.createRangeFilter(field, null))).
+                addSort(field, order).execute().actionGet();
+        if (rsp.getHits().hits().length == 0)
+            return null;
+        Object value = rsp.getHits().hits()[0].sortValues()[0];
+        if (!(value instanceof Number))
+            throw new IllegalArgumentException("partitionField " + field + " has to be numeric or a date but was " + value);
+        return (Number) value;
+    }
+
+    void split(Number min, Number max, int count) {
+        boolean integral = !(min instanceof Double || min instanceof Float || max instanceof Double || max instanceof Float);
+        double from = min.doubleValue();
+        double to = max.doubleValue();
+        if (integral)
+            count = (int) Math.min(count, to - from + 1);
+        if (to <= from || count < 1)
+            count = 1;
+        double lower = from;
+        for (int i = 1; i <= count; i++) {
+            double upper = i == count ? to : from + (to - from) * i / count;
+            if (integral)
+                upper = Math.ceil(upper);
+            partitions.add(new Partition(lower, upper, i == count, false));
+            lower = upper;
+        }
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public List<Partition> partitions() {
+        return Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * Returns the read part of the key space between 0 and 1
+     */
+    public float progress() {
+        double width = 0;
+        double read = 0;
+        for (Partition partition : partitions) {
+            if (partition.missing)
+                continue;
+            // a single value range counts as width 1
+            double w = Math.max(1, partition.to - partition.from);
+            width += w;
+            read += w * partition.progress();
+        }
+        return width == 0 ? 1 : (float) (read / width);
+    }
+
+    /**
+     * The values from (inclusive) to (exclusive, inclusive for the last range)
+     * or the documents without the field.
+     */
+    public class Partition {
+
+        private final double from;
+        private final double to;
+        private final boolean last;
+        private final boolean missing;
+        private volatile double position;
+        private volatile boolean done;
+
+        Partition(double from, double to, boolean last, boolean missing) {
+            this.from = from;
+            this.to = to;
+            this.last = last;
+            this.missing = missing;
+            this.position = from;
+        }
+
+        /**
+         * False for the partition of the documents without the field
+         */
+        public boolean isRange() {
+            return !missing;
+        }
+
+        public float progress() {
+            if (done)
+                return 1;
+            if (to <= from)
+                return 0;
+            return (float) Math.max(0, Math.min(1, (position - from) / (to - from)));
+        }
+
+        /**
+         * Returns the filter for the documents of this partition combined with
+         * the specified filter
+         */
+        public String filter(String filter) {
+            try {
+                XContentBuilder b = XContentFactory.jsonBuilder().startObject();
+                if (missing) {
+                    b.startObject("missing").field("field", field).endObject();
+                } else {
+                    b.startObject("range").startObject(field).field("gte", bound(from)).
+                            field(last ? "lte" : "lt", bound(to)).endObject().endObject();
+                }
+                return ReIndexAction.andFilter(filter, b.endObject().string());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private Object bound(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+                return (long) value;
+            return value;
+        }
+
+        /**
+         * Returns the scroll which moves the position of this partition
+         * forward to the sort value of the last document of every page
+         */
+        public MySearchResponse track(MySearchResponseES rsp) {
+            return new TrackedResponse(rsp);
+        }
+
+        private class TrackedResponse implements MySearchResponse, ClearableScroll {
+
+            private final MySearchResponseES rsp;
+
+            TrackedResponse(MySearchResponseES rsp) {
+                this.rsp = rsp;
+            }
+
+            @Override public MySearchHits hits() {
+                return rsp.hits();
+            }
+
+            @Override public String scrollId() {
+                return rsp.scrollId();
+            }
+
+            @Override public int doScoll() {
+                int count = rsp.doScoll();
+                if (count == 0) {
+                    done = true;
+                } else if (!missing) {
+                    Object[] sortValues = rsp.lastSortValues();
+                    if (sortValues != null && sortValues[0] instanceof Number)
+                        position = ((Number) sortValues[0]).doubleValue();
+                }
+                return count;
+            }
+
+            @Override public long bytes() {
+                return rsp.bytes();
+            }
+
+            @Override public void clearScroll() {
+                rsp.clearScroll();
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Counts latencies in buckets which grow exponentially with four buckets per
+ * power of two, so a percentile is at most 19% above the real value. Covers
+ * latencies up to 2^24 ms (4.6 hours). Thread safe.
+ *
+ * @author Peter Karich
+ */
+public class LatencyHistogram implements ToXContent {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 24 * SUB_BUCKETS + 1;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public synchronized void add(long millis) {
+        millis = Math.max(0, millis);
+        counts[bucket(millis)]++;
+        count++;
+        sum += millis;
+        max = Math.max(max, millis);
+    }
+
+    static int bucket(long millis) {
+        if (millis < 1)
+            return 0;
+        // log2(millis) * SUB_BUCKETS, rounded up
+        int bucket = (int) Math.ceil(Math.log(millis) / Math.log(2) * SUB_BUCKETS);
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    static long upperBound(int bucket) {
+        return (long) Math.floor(Math.pow(2, (double) bucket / SUB_BUCKETS));
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized long max() {
+        return max;
+    }
+
+    public synchronized float mean() {
+        return count == 0 ? 0 : (float) sum / count;
+    }
+
+    /**
+     * Returns the latency which is greater than or equal to the specified
+     * fraction of the latencies
+     *
+     * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    public synchronized long percentile(double quantile) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    @Override public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("count", count());
+        builder.field("mean_millis", mean());
+        builder.field("p50_millis", percentile(0.5));
+        builder.field("p90_millis", percentile(0.9));
+        builder.field("p99_millis", percentile(0.99));
+        builder.field("max_millis", max());
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,56 @@
+package com.pannous.es.reindex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple list based MySearchHits. Used to keep the hits of one scroll page
+ * alive after the next scroll request was executed.
+ *
+ * @author Peter Karich
+ */
+public class MySearchHitList implements MySearchHits {
+
+    private final List<MySearchHit> hits;
+    private final long totalHits;
+
+    public MySearchHitList(int size, long totalHits) {
+        this.hits = new ArrayList<MySearchHit>(size);
+        this.totalHits = totalHits;
+    }
+
+    /**
+     * Copies all hits into a new list
+     */
+    public static MySearchHitList copy(MySearchHits hits, int size) {
+        MySearchHitList list = new MySearchHitList(size, hits.totalHits());
+        for (MySearchHit hit : hits.getHits()) {
+            list.add(hit);
+        }
+        return list;
+    }
+
+    public void add(MySearchHit hit) {
+        hits.add(hit);
+    }
+
+    public MySearchHit get(int index) {
+        return hits.get(index);
+    }
+
+    public int size() {
+        return hits.size();
+    }
+
+    public boolean isEmpty() {
+        return hits.isEmpty();
+    }
+
+    @Override public Iterable<MySearchHit> getHits() {
+        return hits;
+    }
+
+    @Override public long totalHits() {
+        return totalHits;
+    }
+}
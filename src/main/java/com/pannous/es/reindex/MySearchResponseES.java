@@ -18,9 +18,11 @@ package com.pannous.es.reindex;
 import java.util.Iterator;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchHit;
 
 /**
  * Searches with the given client - used for the same cluster. Not suited for
@@ -28,17 +30,20 @@ import org.elasticsearch.search.SearchHits;
  *
  * @author Peter Karich
  */
-public class MySearchResponseES implements MySearchResponse {
+public class MySearchResponseES implements MySearchResponse, ClearableScroll {
 
     private SearchResponse rsp;
     private final int keepTimeInMinutes;
     private final Client client;
     private long bytes = 0;
+    private boolean firstPageFetched;
 
     public MySearchResponseES(Client client, SearchResponse rsp, int keepTimeInMinutes) {
         this.client = client;
         this.rsp = rsp;
         this.keepTimeInMinutes = keepTimeInMinutes;
+        // a sorted scroll returns the first page already with the initial query
+        this.firstPageFetched = rsp.getHits().hits().length > 0;
     }
 
     @Override public MySearchHits hits() {
@@ -57,8 +62,10 @@ public class MySearchResponseES implements MySearchResponse {
                             }
 
                             @Override public MySearchHit next() {
-                                bytes += arr[counter].source().length;
                                 MySearchHitES ret = new MySearchHitES(arr[counter]);
+                                BytesReference source = ret.sourceRef();
+                                if (source != null)
+                                    bytes += source.length();
                                 counter++;
                                 return ret;
                             }
@@ -78,11 +85,27 @@ public class MySearchResponseES implements MySearchResponse {
         };
     }
 
+    /**
+     * The sort values of the last hit of the current page or null if the
+     * page is empty or not sorted
+     */
+    Object[] lastSortValues() {
+        SearchHit[] arr = rsp.getHits().hits();
+        if (arr.length == 0)
+            return null;
+        Object[] values = arr[arr.length - 1].sortValues();
+        return values == null || values.length == 0 ? null : values;
+    }
+
     @Override public String scrollId() {
         return rsp.getScrollId();
     }
 
     @Override public int doScoll() {
+        if (firstPageFetched) {
+            firstPageFetched = false;
+            return rsp.getHits().hits().length;
+        }
         rsp = client.prepareSearchScroll(scrollId()).setScroll(TimeValue.timeValueMinutes(keepTimeInMinutes)).
                 execute().actionGet();
         return rsp.getHits().hits().length;
@@ -93,6 +116,10 @@ public class MySearchResponseES implements MySearchResponse {
         return bytes;
     }
 
+    @Override public void clearScroll() {
+        client.prepareClearScroll().addScrollId(scrollId()).execute().actionGet();
+    }
+
     static class MySearchHitES implements MySearchHit {
 
         private SearchHit sh;
@@ -118,5 +145,15 @@ public class MySearchResponseES implements MySearchResponse {
         @Override public byte[] source() {
             return sh.source();
         }
+
+        /**
+         * The source without a copy - possibly still compressed as stored in
+         * the search index. Avoids the decompression and the copy of source()
+         */
+        BytesReference sourceRef() {
+            if (sh instanceof InternalSearchHit)
+                return ((InternalSearchHit) sh).internalSourceRef();
+            return sh.sourceRef();
+        }
     }
 }
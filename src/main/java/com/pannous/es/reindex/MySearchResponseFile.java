@@ -0,0 +1,195 @@
+package com.pannous.es.reindex;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the hits of a file written with DumpFile instead of searching a
+ * cluster. Every chunk of the file is one page. The file is memory mapped in
+ * windows of up to 256 MB.
+ *
+ * @author Peter Karich
+ */
+public class MySearchResponseFile implements MySearchResponse, ClearableScroll {
+
+    private static final int WINDOW_BYTES = 256 << 20;
+    private final File file;
+    private FileChannel channel;
+    private final long size;
+    private final long totalHits;
+    private ByteBuffer window;
+    private long windowStart;
+    private long position = DumpFile.HEADER_BYTES;
+    private MySearchHitList hits;
+
+    public MySearchResponseFile(File file) {
+        if (!file.isFile())
+            throw new IllegalArgumentException("Dump file " + file + " does not exist");
+        this.file = file;
+        try {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            size = channel.size();
+            if (size < DumpFile.HEADER_BYTES)
+                throw new IllegalArgumentException(file + " is not a dump file");
+            ByteBuffer header = read(0, DumpFile.HEADER_BYTES);
+            if (header.getInt() != DumpFile.MAGIC)
+                throw new IllegalArgumentException(file + " is not a dump file");
+            int version = header.getInt();
+            if (version != DumpFile.FORMAT_VERSION)
+                throw new IllegalArgumentException("Unsupported format version " + version + " of dump " + file);
+            // the chunk headers contain the number of documents
+            long count = 0;
+            for (long pos = DumpFile.HEADER_BYTES; pos < size;) {
+                ByteBuffer chunk = read(pos, DumpFile.CHUNK_HEADER_BYTES);
+                int length = chunk.getInt();
+                count += chunk.getInt();
+                pos += DumpFile.CHUNK_HEADER_BYTES + length;
+                if (pos > size)
+                    throw new IOException("Dump " + file + " is truncated at " + size);
+            }
+            totalHits = count;
+        } catch (IOException ex) {
+            clearScroll();
+            throw new RuntimeException("Cannot open dump " + file, ex);
+        } catch (RuntimeException ex) {
+            clearScroll();
+            throw ex;
+        }
+        hits = new MySearchHitList(0, totalHits);
+    }
+
+    /**
+     * Returns the bytes at the specified position of the file, maps the next
+     * window of the file if they are not in the current one.
+     */
+    private ByteBuffer read(long pos, int length) throws IOException {
+        if (pos + length > size)
+            throw new IOException("Dump " + file + " is truncated at " + pos);
+        if (window == null || pos < windowStart || pos + length > windowStart + window.capacity()) {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(size - pos, Math.max(length, WINDOW_BYTES)));
+            windowStart = pos;
+        }
+        ByteBuffer buf = window.duplicate();
+        buf.position((int) (pos - windowStart));
+        buf.limit(buf.position() + length);
+        return buf.slice();
+    }
+
+    @Override public MySearchHits hits() {
+        return hits;
+    }
+
+    @Override public String scrollId() {
+        return file.getPath();
+    }
+
+    @Override public int doScoll() {
+        if (channel == null || position >= size) {
+            hits = new MySearchHitList(0, totalHits);
+            clearScroll();
+            return 0;
+        }
+        long chunkStart = position;
+        try {
+            ByteBuffer header = read(position, DumpFile.CHUNK_HEADER_BYTES);
+            int length = header.getInt();
+            int count = header.getInt();
+            int uncompressed = header.getInt();
+            byte[] compressed = new byte[length];
+            read(position + DumpFile.CHUNK_HEADER_BYTES, length).get(compressed);
+            position += DumpFile.CHUNK_HEADER_BYTES + length;
+
+            byte[] data = new byte[uncompressed];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int read = 0;
+                while (read < uncompressed && !inflater.finished()) {
+                    int n = inflater.inflate(data, read, uncompressed - read);
+                    // a truncated or corrupt chunk would never finish
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+                if (read != uncompressed)
+                    throw new IOException("Chunk of dump " + file + " at " + chunkStart + " has " + read
+                            + " instead of " + uncompressed + " bytes");
+            } finally {
+                inflater.end();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            hits = new MySearchHitList(count, totalHits);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String parent = in.readBoolean() ? in.readUTF() : null;
+                long version = in.readLong();
+                byte[] source = new byte[in.readInt()];
+                in.readFully(source);
+                hits.add(new MySearchHitFile(id, parent, version, source));
+            }
+            return count;
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read dump " + file + " at " + position, ex);
+        } catch (DataFormatException ex) {
+            throw new RuntimeException("Corrupt dump " + file + " before " + position, ex);
+        }
+    }
+
+    /**
+     * The compressed bytes which are already read
+     */
+    @Override public long bytes() {
+        return position - DumpFile.HEADER_BYTES;
+    }
+
+    @Override public void clearScroll() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // the file was only read
+        }
+        channel = null;
+        window = null;
+    }
+
+    static class MySearchHitFile implements MySearchHit {
+
+        private final String id;
+        private final String parent;
+        private final long version;
+        private final byte[] source;
+
+        MySearchHitFile(String id, String parent, long version, byte[] source) {
+            this.id = id;
+            this.parent = parent;
+            this.version = version;
+            this.source = source;
+        }
+
+        @Override public String id() {
+            return id;
+        }
+
+        @Override public String parent() {
+            return parent;
+        }
+
+        @Override public long version() {
+            return version;
+        }
+
+        @Override public byte[] source() {
+            return source;
+        }
+    }
+}
@@ -25,82 +25,135 @@ import java.net.Proxy;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 
 /**
  * @author Peter Karich
  */
-public class MySearchResponseJson implements MySearchResponse {
+public class MySearchResponseJson implements MySearchResponse, ClearableScroll {
 
-    private int timeout = 20000;
+    // the client of the constructors without a client, created once
+    private static HttpClient defaultClient;
     private HttpClient client;
-    private String scrollId;
+    private volatile String scrollId;
     private List<MySearchHit> bufferedHits;
     private String host;
     private int port;
     private int keepMin;
     private final boolean withVersion;
-    private final long totalHits;
-    private long bytes;
+    private volatile long totalHits;
+    private volatile long bytes;
+    private int hitsPerPage;
     private String credentials = "";
+    private boolean firstPageFetched;
+    private BlockingQueue<Page> readAheadPages;
+    private ExecutorService readAheadExecutor;
+    private volatile boolean closed;
+    private boolean exhausted;
+
+    /**
+     * Creates a response without a connection e.g. to parse recorded scroll
+     * pages via parsePage
+     */
+    MySearchResponseJson(int hitsPerPage, boolean withVersion) {
+        this.withVersion = withVersion;
+        this.hitsPerPage = hitsPerPage;
+        bufferedHits = new ArrayList<MySearchHit>(hitsPerPage);
+    }
 
     public MySearchResponseJson(String searchHost, int searchPort, String searchIndexName,
             String searchType, String filter, String credentials,
             int hitsPerPage, boolean withVersion, int keepTimeInMinutes) {
+        this(searchHost, searchPort, searchIndexName, searchType, filter, credentials, hitsPerPage,
+                withVersion, keepTimeInMinutes, null);
+    }
+
+    public MySearchResponseJson(String searchHost, int searchPort, String searchIndexName,
+            String searchType, String filter, String credentials,
+            int hitsPerPage, boolean withVersion, int keepTimeInMinutes, String preference) {
+        this(searchHost, searchPort, searchIndexName, searchType, filter, credentials, hitsPerPage,
+                withVersion, keepTimeInMinutes, preference, null);
+    }
+
+    public MySearchResponseJson(String searchHost, int searchPort, String searchIndexName,
+            String searchType, String filter, String credentials,
+            int hitsPerPage, boolean withVersion, int keepTimeInMinutes, String preference, String sort) {
+        this(defaultClient(), searchHost, searchPort, searchIndexName,
+                searchType, filter, credentials, hitsPerPage, withVersion, keepTimeInMinutes, preference, sort);
+    }
+
+    private static synchronized HttpClient defaultClient() {
+        if (defaultClient == null)
+            defaultClient = ReIndexHttpClient.createClient(ImmutableSettings.EMPTY);
+        return defaultClient;
+    }
+
+    /**
+     * @param client the shared client of the node, see ReIndexHttpClient
+     * @param preference e.g. _shards:0,2 to scroll only through a part of the
+     * shards or null for all shards
+     * @param sort e.g. _uid to scroll in a stable order instead of a scan or
+     * null
+     */
+    public MySearchResponseJson(HttpClient client, String searchHost, int searchPort, String searchIndexName,
+            String searchType, String filter, String credentials,
+            int hitsPerPage, boolean withVersion, int keepTimeInMinutes, String preference, String sort) {
         if (!searchHost.startsWith("http"))
             searchHost = "http://" + searchHost;
         this.host = searchHost;
         this.port = searchPort;
         this.withVersion = withVersion;
         keepMin = keepTimeInMinutes;
+        this.hitsPerPage = hitsPerPage;
         bufferedHits = new ArrayList<MySearchHit>(hitsPerPage);
-        PoolingClientConnectionManager connManager = new PoolingClientConnectionManager();
-        connManager.setMaxTotal(10);
-        
-        BasicHttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, timeout);      
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setContentCharset(params, "UTF-8");        
-        client = new DefaultHttpClient(connManager, params);                        
-        
+        this.client = client;
+
         // does not work!? client.getParams().setParameter("Authorization", "Basic " + credentials);
         if (credentials != null)
             this.credentials = credentials;        
 
         // initial query to get scroll id for our specific search
-        try {
-            String url = searchHost + ":" + searchPort + "/" + searchIndexName + "/" + searchType
-                    + "/_search?search_type=scan&scroll=" + keepMin + "m&size=" + hitsPerPage;
-
-            String query;
-            if (filter == null || filter.isEmpty())
-                query = "{ \"query\" : {\"match_all\" : {}}, \"fields\" : [\"_source\", \"_parent\"]}";
-            else
-                query = "{ \"filter\" : " + filter + ", \"fields\" : [\"_source\", \"_parent\"] }";
-           
-            JSONObject res = doPost(url, query);
-            scrollId = res.getString("_scroll_id");
-            totalHits = res.getJSONObject("hits").getLong("total");
-        } catch (JSONException ex) {
-            throw new RuntimeException(ex);
-        }
+        String url = searchHost + ":" + searchPort + "/" + searchIndexName + "/" + searchType
+                + "/_search?scroll=" + keepMin + "m&size=" + hitsPerPage;
+        if (sort == null)
+            url += "&search_type=scan";
+        else
+            url += "&sort=" + sort + ":asc";
+        if (withVersion)
+            url += "&version=true";
+        if (preference != null)
+            url += "&preference=" + preference;
+
+        String query;
+        if (filter == null || filter.isEmpty())
+            query = "{ \"query\" : {\"match_all\" : {}}, \"fields\" : [\"_source\", \"_parent\"]}";
+        else
+            query = "{ \"filter\" : " + filter + ", \"fields\" : [\"_source\", \"_parent\"] }";
+
+        HttpPost http = new HttpPost(url);
+        http.setEntity(new StringEntity(query, ContentType.APPLICATION_JSON));
+        execute(http, bufferedHits);
+        // a sorted scroll returns the first page already with the initial query
+        firstPageFetched = !bufferedHits.isEmpty();
     }
 
     @Override public MySearchHits hits() {
@@ -119,39 +172,99 @@ public class MySearchResponseJson implements MySearchResponse {
         return scrollId;
     }
 
-    @Override public int doScoll() {
+    /**
+     * Fetches up to depth scroll pages in a background thread while the
+     * current page is processed. 0 fetches a page only when doScoll is called.
+     */
+    public MySearchResponseJson readAhead(int depth) {
+        if (depth <= 0 || readAheadPages != null)
+            return this;
+
+        readAheadPages = new ArrayBlockingQueue<Page>(depth);
+        readAheadExecutor = Executors.newSingleThreadExecutor(EsExecutors.daemonThreadFactory("reindex_read_ahead"));
+        readAheadExecutor.execute(new Runnable() {
+            @Override public void run() {
+                fetchPages();
+            }
+        });
+        // the thread ends with the last page
+        readAheadExecutor.shutdown();
+        return this;
+    }
+
+    private void fetchPages() {
         try {
-            bufferedHits.clear();
-            JSONObject json = doGet(host + ":" + port
-                    + "/_search/scroll?scroll=" + keepMin + "m&scroll_id=" + scrollId);
-            scrollId = json.getString("_scroll_id");
-            JSONObject hitsJson = json.getJSONObject("hits");
-            JSONArray arr = hitsJson.getJSONArray("hits");
-            for (int i = 0; i < arr.length(); i++) {
-                JSONObject hitJson = arr.getJSONObject(i);
-                long version = -1;
-                String id = hitJson.getString("_id");
-                String parent = "";
-                if (hitJson.has("_parent"))
-                     parent = hitJson.getString("_parent");
-                if (hitJson.has("fields")) {
-                     JSONObject fields = hitJson.getJSONObject("fields");
-                     if (fields.has("_parent")) {
-                         parent = fields.getString("_parent");
-                    }
+            while (!closed) {
+                Page page = new Page();
+                try {
+                    page.hits = new ArrayList<MySearchHit>(hitsPerPage);
+                    execute(createScrollRequest(), page.hits);
+                } catch (RuntimeException ex) {
+                    page.error = ex;
                 }
-                String sourceStr = hitJson.getString("_source");
-                byte[] source = sourceStr.getBytes("UTF-8");
-                if (withVersion && hitJson.has("_version"))
-                    version = hitJson.getLong("_version");
-                bytes += source.length;
-                MySearchHitJson res = new MySearchHitJson(id, parent, source, version);
-                bufferedHits.add(res);
+                // give up if nobody takes the pages until the scroll expired
+                long giveUp = System.nanoTime() + TimeUnit.MINUTES.toNanos(keepMin);
+                while (!readAheadPages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed || System.nanoTime() > giveUp)
+                        return;
+                }
+                if (page.error != null || page.hits.isEmpty())
+                    return;
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopReadAhead() {
+        closed = true;
+        if (readAheadExecutor != null)
+            readAheadExecutor.shutdownNow();
+    }
+
+    private HttpGet createScrollRequest() {
+        return new HttpGet(host + ":" + port + "/_search/scroll?scroll=" + keepMin + "m&scroll_id=" + scrollId);
+    }
+
+    @Override public int doScoll() {
+        if (firstPageFetched) {
+            firstPageFetched = false;
             return bufferedHits.size();
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
         }
+        if (readAheadPages == null) {
+            bufferedHits.clear();
+            execute(createScrollRequest(), bufferedHits);
+            return bufferedHits.size();
+        }
+
+        if (exhausted)
+            return 0;
+        Page page;
+        try {
+            page = readAheadPages.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the next scroll page", ex);
+        }
+        if (page.error != null) {
+            stopReadAhead();
+            throw page.error;
+        }
+        // every fetched page has its own list => the hits stay valid
+        bufferedHits = page.hits;
+        if (bufferedHits.isEmpty())
+            exhausted = true;
+        return bufferedHits.size();
+    }
+
+    /**
+     * Replaces the current hits with the hits of the specified scroll
+     * response and returns their number
+     */
+    int parsePage(InputStream is) throws IOException {
+        bufferedHits.clear();
+        parse(is, bufferedHits);
+        return bufferedHits.size();
     }
 
     @Override
@@ -159,6 +272,27 @@ public class MySearchResponseJson implements MySearchResponse {
         return bytes;
     }
 
+    @Override public void clearScroll() {
+        stopReadAhead();
+        HttpDelete http = new HttpDelete(host + ":" + port + "/_search/scroll/" + scrollId);
+        try {
+            addHeaders(http);
+            HttpResponse rsp = client.execute(http);
+            EntityUtils.consume(rsp.getEntity());
+        } catch (Exception ex) {
+            throw new RuntimeException("Problem while " + http.getMethod()
+                    + ", Error:" + ex.getMessage() + ", url:" + http.getURI(), ex);
+        } finally {
+            http.releaseConnection();
+        }
+    }
+
+    private static class Page {
+
+        List<MySearchHit> hits;
+        RuntimeException error;
+    }
+
     class MySearchHitJson implements MySearchHit {
 
         String id;
@@ -207,24 +341,28 @@ public class MySearchResponseJson implements MySearchResponse {
         return hConn;
     }
 
-    public JSONObject doPost(String url, String content) throws JSONException {
-        return new JSONObject(requestContent(new HttpPost(url), content));
-    }
-
-    public JSONObject doGet(String url) throws JSONException {
-        HttpGet http = new HttpGet(url);
+    /**
+     * Executes the search or scroll request and parses the response directly
+     * from the stream into scrollId, totalHits and the specified hits.
+     */
+    void execute(HttpRequestBase http, List<MySearchHit> hits) {
         try {
             addHeaders(http);
             HttpResponse rsp = client.execute(http);
             int ret = rsp.getStatusLine().getStatusCode();
-            if (ret / 200 == 1)
-                return new JSONObject(readString(rsp.getEntity().getContent(), "UTF-8"));
+            if (ret / 200 != 1)
+                throw new RuntimeException("Problem " + ret + " while " + http.getMethod()
+                        + " " + readString(rsp.getEntity().getContent(), "UTF-8"));
 
-            throw new RuntimeException("Problem " + ret + " while " + http.getMethod()
-                    + " " + readString(rsp.getEntity().getContent(), "UTF-8"));
+            InputStream is = rsp.getEntity().getContent();
+            try {
+                parse(is, hits);
+            } finally {
+                is.close();
+            }
         } catch (Exception ex) {
             throw new RuntimeException("Problem while " + http.getMethod()
-                    + ", Error:" + ex.getMessage() + ", url:" + url, ex);
+                    + ", Error:" + ex.getMessage() + ", url:" + http.getURI(), ex);
         } finally {
             http.releaseConnection();
         }
@@ -236,24 +374,102 @@ public class MySearchResponseJson implements MySearchResponse {
             http.setHeader("Authorization", "Basic " + credentials);
     }
 
-    public String requestContent(HttpEntityEnclosingRequestBase http, String content) {
+    /**
+     * Reads the response token by token. The _source of every hit is copied
+     * as JSON bytes without creating a String or a tree for it.
+     */
+    void parse(InputStream is, List<MySearchHit> hits) throws IOException {
+        XContentParser parser = JsonXContent.jsonXContent.createParser(is);
         try {
-            addHeaders(http);
-            StringEntity sendentity = new StringEntity(content, "UTF-8");
-            http.setEntity(sendentity);
-            HttpResponse rsp = client.execute(http);
-            int ret = rsp.getStatusLine().getStatusCode();
-            if (ret / 200 == 1)
-                return readString(rsp.getEntity().getContent(), "UTF-8");
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT)
+                throw new IOException("response is not a JSON object");
 
-            throw new RuntimeException("Problem " + ret + " while " + http.getMethod()
-                    + " " + readString(rsp.getEntity().getContent(), "UTF-8"));
-        } catch (Exception ex) {
-            throw new RuntimeException("Problem while " + http.getMethod()
-                    + ", Error:" + ex.getMessage() + ", url:" + http.getURI(), ex);
+            String field = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME)
+                    field = parser.currentName();
+                else if ("_scroll_id".equals(field) && token.isValue())
+                    scrollId = parser.text();
+                else if ("hits".equals(field) && token == XContentParser.Token.START_OBJECT)
+                    parseHits(parser, hits);
+                else
+                    parser.skipChildren();
+            }
         } finally {
-            http.releaseConnection();
+            parser.close();
+        }
+    }
+
+    private void parseHits(XContentParser parser, List<MySearchHit> hits) throws IOException {
+        String field = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if ("total".equals(field) && token.isValue()) {
+                totalHits = parser.longValue();
+            } else if ("hits".equals(field) && token == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                    hits.add(parseHit(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private MySearchHitJson parseHit(XContentParser parser) throws IOException {
+        String id = null;
+        String parent = "";
+        long version = -1;
+        byte[] source = null;
+        String field = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if ("_id".equals(field)) {
+                id = parser.text();
+            } else if ("_parent".equals(field) && token.isValue()) {
+                parent = parser.text();
+            } else if ("_version".equals(field) && token.isValue()) {
+                if (withVersion)
+                    version = parser.longValue();
+            } else if ("fields".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                String fieldsParent = parseParentField(parser);
+                if (fieldsParent != null)
+                    parent = fieldsParent;
+            } else if ("_source".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                XContentBuilder builder = XContentFactory.jsonBuilder().copyCurrentStructure(parser);
+                source = builder.bytes().toBytes();
+                bytes += source.length;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new MySearchHitJson(id, parent, source, version);
+    }
+
+    private String parseParentField(XContentParser parser) throws IOException {
+        String parent = null;
+        String field = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if ("_parent".equals(field) && token.isValue()) {
+                parent = parser.text();
+            } else if ("_parent".equals(field) && token == XContentParser.Token.START_ARRAY) {
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    if (parent == null && token.isValue())
+                        parent = parser.text();
+                }
+            } else {
+                parser.skipChildren();
+            }
         }
+        return parent;
     }
 
     public static String readString(InputStream inputStream, String encoding) throws IOException {
@@ -0,0 +1,120 @@
+package com.pannous.es.reindex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Tunes the target index for a bulk load: no refresh, no replicas and a
+ * translog which is flushed less often. The values the index had before are
+ * restored afterwards, the index is optimized and the replicas are awaited.
+ * A setting the index never had gets the value of the node or the built-in
+ * default of the shard again, because a shard keeps its current value if the
+ * setting is only removed.
+ *
+ * @author Peter Karich
+ */
+public class OptimizedLoad {
+
+    static final String REFRESH_INTERVAL = "index.refresh_interval";
+    static final String REPLICAS = "index.number_of_replicas";
+    static final String FLUSH_THRESHOLD_SIZE = "index.translog.flush_threshold_size";
+    static final String FLUSH_THRESHOLD_PERIOD = "index.translog.flush_threshold_period";
+    private static final Map<String, String> LOAD_SETTINGS = new LinkedHashMap<String, String>();
+    // the built-in values of a shard if neither the index nor the node has one
+    private static final Map<String, String> SHARD_DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        LOAD_SETTINGS.put(REFRESH_INTERVAL, "-1");
+        LOAD_SETTINGS.put(REPLICAS, "0");
+        LOAD_SETTINGS.put(FLUSH_THRESHOLD_SIZE, "1gb");
+        LOAD_SETTINGS.put(FLUSH_THRESHOLD_PERIOD, "60m");
+        SHARD_DEFAULTS.put(REFRESH_INTERVAL, "1s");
+        SHARD_DEFAULTS.put(FLUSH_THRESHOLD_SIZE, "200mb");
+        SHARD_DEFAULTS.put(FLUSH_THRESHOLD_PERIOD, "30m");
+    }
+    private final ESLogger logger = Loggers.getLogger(getClass());
+    private final Client client;
+    private final String index;
+    private final Map<String, String> original = new LinkedHashMap<String, String>();
+
+    private OptimizedLoad(Client client, String index) {
+        this.client = client;
+        this.index = index;
+    }
+
+    /**
+     * Remembers the current settings of the index and applies the bulk load
+     * settings
+     *
+     * @param nodeSettings the settings of the node which apply if the index
+     * has no own value
+     */
+    public static OptimizedLoad start(Client client, String index, Settings nodeSettings) {
+        IndexMetaData meta = client.admin().cluster().prepareState().setIndices(index).execute().actionGet().
+                getState().metaData().index(index);
+        if (meta == null)
+            throw new IllegalArgumentException("index " + index + " does not exist");
+        OptimizedLoad load = new OptimizedLoad(client, index);
+        for (String key : LOAD_SETTINGS.keySet()) {
+            String value = meta.settings().get(key);
+            if (value == null)
+                value = nodeSettings.get(key);
+            if (value == null && key.equals(REPLICAS))
+                value = Integer.toString(meta.numberOfReplicas());
+            if (value == null)
+                value = SHARD_DEFAULTS.get(key);
+            load.original.put(key, value);
+        }
+        load.update(LOAD_SETTINGS);
+        return load;
+    }
+
+    public String index() {
+        return index;
+    }
+
+    /**
+     * The settings of the index before the load
+     */
+    public Map<String, String> original() {
+        return original;
+    }
+
+    /**
+     * Sets the original settings again
+     */
+    public void restore() {
+        update(original);
+    }
+
+    /**
+     * Optimizes the index and waits until all replicas are allocated.
+     *
+     * @param maxNumSegments the number of segments to merge into, -1 if the
+     * merge policy decides
+     * @throws RuntimeException if the index is not green within the timeout
+     */
+    public void finish(int maxNumSegments, TimeValue greenTimeout) {
+        logger.info("optimizing " + index + " to " + maxNumSegments + " segments");
+        client.admin().indices().prepareOptimize(index).setMaxNumSegments(maxNumSegments).execute().actionGet();
+        ClusterHealthResponse health = client.admin().cluster().prepareHealth(index).setWaitForGreenStatus().
+                setTimeout(greenTimeout).execute().actionGet();
+        if (health.isTimedOut())
+            throw new RuntimeException("index " + index + " is not green after " + greenTimeout
+                    + " but " + health.getStatus());
+    }
+
+    private void update(Map<String, String> settings) {
+        logger.info("updating settings of " + index + " to " + settings);
+        client.admin().indices().prepareUpdateSettings(index).
+                setSettings(ImmutableSettings.settingsBuilder().put(settings)).execute().actionGet();
+    }
+}
@@ -1,10 +1,24 @@
 package com.pannous.es.reindex;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import org.elasticsearch.action.admin.indices.flush.FlushRequest;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -12,13 +26,27 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.rest.*;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.sort.SortOrder;
 import static org.elasticsearch.rest.RestRequest.Method.*;
 import static org.elasticsearch.rest.RestStatus.*;
 
@@ -29,8 +57,24 @@ import static org.elasticsearch.rest.RestStatus.*;
  */
 public class ReIndexAction extends BaseRestHandler {
 
-    @Inject public ReIndexAction(Settings settings, Client client, RestController controller) {
+    static final int MAX_RETRIES_PER_BULK = 1000;
+    private final ReIndexJobs jobs;
+    private final ReIndexHttpClient httpClient;
+    private final ScriptService scriptService;
+    private final ExecutorService groupExecutor;
+
+    public ReIndexAction(Settings settings, Client client, RestController controller) {
+        this(settings, client, controller, new ReIndexJobs(settings), new ReIndexHttpClient(settings), null);
+    }
+
+    @Inject public ReIndexAction(Settings settings, Client client, RestController controller, ReIndexJobs jobs,
+            ReIndexHttpClient httpClient, ScriptService scriptService) {
         super(settings, controller, client);
+        this.jobs = jobs;
+        this.httpClient = httpClient;
+        this.scriptService = scriptService;
+        // idle threads terminate, so the pool needs no shutdown
+        this.groupExecutor = Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory(settings, "reindex_group"));
 
         if (controller != null) {
             // Define REST endpoints to do a reindex
@@ -43,13 +87,208 @@ public class ReIndexAction extends BaseRestHandler {
         handleRequest(request, channel, null, false, client);
     }
 
-    public void handleRequest(RestRequest request, RestChannel channel, String newTypeOverride, boolean internalCall, Client client) {
+    public void handleRequest(final RestRequest request, RestChannel channel, final String newTypeOverride,
+            boolean internalCall, final Client client) {
         logger.info("ReIndexAction.handleRequest [{}]", request.params());
-        String newIndexName = request.param("index");
+        final ReIndexJob job = createJob(request);
+        Runnable task = new Runnable() {
+            @Override public void run() {
+                try {
+                    reindex(request, job, newTypeOverride, client);
+                    flushRetries(job, client);
+                } finally {
+                    finish(job);
+                }
+            }
+        };
+        if (!internalCall && request.paramAsBoolean("async", false)) {
+            jobs.execute(job, task);
+            sendJobResponse(job, channel);
+            return;
+        }
+
+        jobs.run(job, task);
+        if (!internalCall)
+            channel.sendResponse(new BytesRestResponse(OK));
+    }
+
+    static void sendJobResponse(ReIndexJob job, RestChannel channel) {
+        try {
+            XContentBuilder builder = channel.newBuilder();
+            job.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Creates a job with the options of the specified request.
+     */
+    public ReIndexJob createJob(RestRequest request) {
+        ReIndexJob job = new ReIndexJob(request.uri()).
+                withVersion(request.paramAsBoolean("withVersion", false)).
+                versionType(VersionType.fromString(request.param("versionType"), VersionType.INTERNAL)).
+                opType(IndexRequest.OpType.fromString(request.param("opType", "index"))).
+                waitSeconds(request.paramAsFloat("waitInSeconds", 0)).
+                maxDocsPerSec(request.paramAsFloat("maxDocsPerSec", 0)).
+                maxBytesPerSec(request.paramAsSize("maxBytesPerSec", new ByteSizeValue(0)).bytes()).
+                prefetchPages(request.paramAsInt("prefetchPages", 0)).
+                bulkThreads(request.paramAsInt("bulkThreads", 1)).
+                maxConcurrentBulks(request.paramAsInt("maxConcurrentBulks", 0)).
+                callbackThreads(request.paramAsInt("callbackThreads", 1), request.paramAsBoolean("keepOrder", true)).
+                bulkBytes(Math.round(request.paramAsFloat("bulkSizeMb", 0) * (1 << 20))).
+                maxBufferBytes(Math.round(request.paramAsFloat("maxBufferMb", 0) * (1 << 20))).
+                bulkSize(createBulkSize(request)).
+                retries(request.paramAsInt("maxRetries", 3), request.paramAsLong("retryBackoffMillis", 500)).
+                skipUnchanged(request.paramAsBoolean("skipUnchanged", false)).
+                checkpoint(request.param("checkpoint"), request.paramAsLong("checkpointIntervalSeconds", 10) * 1000).
+                transform(ReIndexTransform.parse(request, scriptService));
+        String groupBulksBy = request.param("groupBulksBy");
+        if (groupBulksBy != null)
+            job.shardGroups(new ShardGroups(settings, ShardGroups.By.fromString(groupBulksBy),
+                    request.paramAsInt("bulksPerGroup", 1)));
+        String dumpFile = request.param("dumpFile");
+        if (dumpFile != null)
+            job.dumpFile(new File(dumpFile));
+        String deadLetterFile = request.param("deadLetterFile");
+        if (deadLetterFile == null) {
+            String dir = settings.get("path.logs", System.getProperty("java.io.tmpdir"));
+            deadLetterFile = new File(dir, "reindex-" + job.id() + "-failed.json").getPath();
+        }
+        return job.deadLetterFile(new File(deadLetterFile));
+    }
+
+    /**
+     * Returns null if the bulk size should not be adaptive
+     */
+    AdaptiveBulkSize createBulkSize(RestRequest request) {
+        long targetMillis = request.paramAsLong("targetBulkMillis", -1);
+        if (targetMillis <= 0)
+            return null;
+        return new AdaptiveBulkSize(targetMillis, request.paramAsInt("minBulkDocs", 10),
+                request.paramAsInt("maxBulkDocs", 10000),
+                Math.round(request.paramAsFloat("maxBulkMb", 50) * (1 << 20)));
+    }
+
+    /**
+     * Reindexes the documents specified from the request in the calling thread
+     * and adds the counts to the progress of the specified job. The search
+     * index can be a list or a pattern - with indexThreads several of the
+     * indices are read at the same time and share the bulk threads of the
+     * job as limit for the concurrent bulk requests. With loadFile the
+     * documents are read from a dump file instead of a search index. If
+     * the job skips unchanged documents the target documents are loaded first.
+     * Can be called several times for one job, the caller sends the retries
+     * and calls finish when the job ends.
+     */
+    public void reindex(final RestRequest request, final ReIndexJob job, final String newTypeOverride,
+            final Client client) {
+        String newType = newTypeOverride != null ? newTypeOverride : request.param("type");
+        if (job.digests() != null) {
+            int before = job.digests().size();
+            job.digests().load(client, request.param("index"), newType, request.paramAsInt("hitsPerPage", 1000));
+            logger.info("Loaded " + (job.digests().size() - before) + " hashes of " + request.param("index") + "/"
+                    + newType + " to skip unchanged documents");
+        }
+        String loadFile = request.param("loadFile");
+        if (loadFile != null) {
+            reindex(job, Collections.<MySearchResponse>singletonList(new MySearchResponseFile(new File(loadFile))),
+                    null, request.param("index"), newType, client);
+            logger.info("Finished loading " + loadFile + " into " + request.param("index"));
+            return;
+        }
         String searchIndexName = request.param("searchIndex");
         if (searchIndexName == null || searchIndexName.isEmpty())
-            searchIndexName = newIndexName;
+            searchIndexName = request.param("index");
+        boolean localAction = "localhost".equals(request.param("searchHost", "localhost"))
+                && request.paramAsInt("searchPort", 9200) == 9200;
+        List<String> searchIndices = resolveIndices(searchIndexName, request.param("index"), localAction, client);
+        int indexThreads = Math.min(request.paramAsInt("indexThreads", 1), searchIndices.size());
+        if (indexThreads <= 1) {
+            for (String searchIndex : searchIndices) {
+                if (job.isCancelled())
+                    return;
+                reindex(request, job, newTypeOverride, searchIndex, client);
+            }
+            return;
+        }
 
+        List<Runnable> tasks = new ArrayList<Runnable>(searchIndices.size());
+        for (final String searchIndex : searchIndices) {
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    reindex(request, job, newTypeOverride, searchIndex, client);
+                }
+            });
+        }
+        runInParallel(job, tasks, indexThreads, "reindex_index");
+    }
+
+    /**
+     * Runs the tasks of the job with the specified number of threads and
+     * waits until they are done. The tasks share the bulk threads of the job
+     * as limit for the concurrent bulk requests if the job has no own limit.
+     * If a task fails the job is cancelled.
+     */
+    void runInParallel(final ReIndexJob job, List<Runnable> tasks, int threads, String threadName) {
+        if (job.bulkPermits() == null)
+            job.maxConcurrentBulks(job.bulkThreads());
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                EsExecutors.daemonThreadFactory(settings, threadName));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+            for (final Runnable task : tasks) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override public void run() {
+                        if (!job.isCancelled())
+                            task.run();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            job.cancel();
+            throw new RuntimeException(threadName + " failed: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Splits the comma separated index names and, for a local search index,
+     * expands the wildcards to the open indices in alphabetical order. The
+     * target index is removed from a list or pattern, only a single search
+     * index can be the target itself.
+     */
+    static List<String> resolveIndices(String indices, String targetIndex, boolean local, Client client) {
+        String[] names = Strings.commaDelimitedListToStringArray(indices);
+        boolean several = names.length > 1 || indices.contains("*");
+        if (local && several) {
+            names = client.admin().cluster().prepareState().execute().actionGet().getState().metaData().
+                    concreteIndices(IndicesOptions.lenientExpandOpen(), names);
+            Arrays.sort(names);
+        }
+        List<String> list = new ArrayList<String>(names.length);
+        for (String name : names) {
+            name = name.trim();
+            if (several && name.equals(targetIndex))
+                continue;
+            list.add(name);
+        }
+        if (list.isEmpty())
+            throw new IllegalArgumentException("No search index found for " + indices
+                    + (targetIndex == null ? "" : " except the target index " + targetIndex));
+        return list;
+    }
+
+    private void reindex(RestRequest request, ReIndexJob job, String newTypeOverride, String searchIndexName,
+            Client client) {
+        String newIndexName = request.param("index");
         String newType = newTypeOverride != null ? newTypeOverride : request.param("type");
         String searchType = newTypeOverride != null ? newTypeOverride : request.param("searchType");
         if (searchType == null || searchType.isEmpty())
@@ -58,35 +297,169 @@ public class ReIndexAction extends BaseRestHandler {
         int searchPort = request.paramAsInt("searchPort", 9200);
         String searchHost = request.param("searchHost", "localhost");
         boolean localAction = "localhost".equals(searchHost) && searchPort == 9200;
-        boolean withVersion = request.paramAsBoolean("withVersion", false);
+        boolean withVersion = job.withVersion();
         int keepTimeInMinutes = request.paramAsInt("keepTimeInMinutes", 30);
         int hitsPerPage = request.paramAsInt("hitsPerPage", 1000);
-        float waitInSeconds = request.paramAsFloat("waitInSeconds", 0);
+        int readers = request.paramAsInt("readers", 1);
+        int searchShards = request.paramAsInt("searchShards", -1);
+        int readAhead = request.paramAsInt("readAhead", 1);
         String basicAuthCredentials = request.param("credentials", "");
         String filter = request.content().toUtf8();
-        MySearchResponse rsp;
-        if (localAction) {
-            SearchRequestBuilder srb = createScrollSearch(searchIndexName, searchType, filter,
-                    hitsPerPage, withVersion, keepTimeInMinutes, client);
-            SearchResponse sr = srb.execute().actionGet();
-            rsp = new MySearchResponseES(client, sr, keepTimeInMinutes);
-        } else {
-            // TODO make it possible to restrict to a cluster
-            rsp = new MySearchResponseJson(searchHost, searchPort, searchIndexName, searchType, filter,
-                    basicAuthCredentials, hitsPerPage, withVersion, keepTimeInMinutes);
+        if (readers > 1 && searchShards < 1) {
+            if (!localAction)
+                throw new IllegalArgumentException("searchShards is required for parallel reads from " + searchHost);
+            IndexMetaData searchIndexMeta = client.admin().cluster().prepareState().execute().actionGet().
+                    getState().metaData().index(searchIndexName);
+            if (searchIndexMeta == null)
+                throw new IllegalArgumentException("searchShards is required as index " + searchIndexName + " was not found");
+            searchShards = searchIndexMeta.numberOfShards();
+        }
+        ReIndexCheckpoint checkpoint = null;
+        List<ReIndexCheckpoint.Slice> positions = null;
+        if (job.checkpoint() != null) {
+            if (searchType == null || searchType.isEmpty() || searchType.contains(",") || searchType.contains("*"))
+                throw new IllegalArgumentException("A checkpoint requires a single search type but was " + searchType);
+            checkpoint = ReIndexCheckpoint.load(client, job.checkpoint() + "/" + searchIndexName + "/" + searchType,
+                    searchType, job.progress(), job.checkpointIntervalMillis());
+            if (checkpoint.isFinished()) {
+                logger.info("Skipped reindexing of " + searchIndexName + "/" + searchType
+                        + " as checkpoint " + checkpoint.id() + " is already finished");
+                return;
+            }
+            positions = new ArrayList<ReIndexCheckpoint.Slice>();
+        }
+        String timestampField = request.param("timestampField");
+        Object highWaterMark = null;
+        if (timestampField != null) {
+            if (!localAction)
+                throw new IllegalArgumentException("timestampField is only supported for a local search index");
+            highWaterMark = findHighWaterMark(searchIndexName, searchType, timestampField, filter, client);
+        }
+        String partitionField = request.param("partitionField");
+        List<MySearchResponse> slices = new ArrayList<MySearchResponse>();
+        if (partitionField != null) {
+            if (!localAction)
+                throw new IllegalArgumentException("partitionField is only supported for a local search index");
+            if (checkpoint != null)
+                throw new IllegalArgumentException("partitionField cannot be combined with a checkpoint");
+            KeyRangePartitions keyRanges = KeyRangePartitions.create(client, searchIndexName, searchType,
+                    partitionField, filter, readers);
+            job.addPartitions(keyRanges);
+            for (KeyRangePartitions.Partition partition : keyRanges.partitions()) {
+                SearchRequestBuilder srb = createScrollSearch(searchIndexName, searchType, partition.filter(filter),
+                        hitsPerPage, withVersion, keepTimeInMinutes, client);
+                if (partition.isRange())
+                    srb.setSearchType(SearchType.QUERY_THEN_FETCH).addSort(partitionField, SortOrder.ASC);
+                slices.add(partition.track(new MySearchResponseES(client, srb.execute().actionGet(), keepTimeInMinutes)));
+            }
+        }
+        for (String preference : partitionField != null ? Collections.<String>emptyList()
+                : createShardPreferences(readers, searchShards)) {
+            String sliceFilter = filter;
+            if (checkpoint != null) {
+                ReIndexCheckpoint.Slice position = checkpoint.slice(preference == null ? "_all" : preference);
+                positions.add(position);
+                sliceFilter = checkpoint.createFilter(position, filter);
+            }
+            if (localAction) {
+                SearchRequestBuilder srb = createScrollSearch(searchIndexName, searchType, sliceFilter,
+                        hitsPerPage, withVersion, keepTimeInMinutes, client);
+                if (preference != null)
+                    srb.setPreference(preference);
+                // a scan has no order and cannot be resumed
+                if (checkpoint != null)
+                    srb.setSearchType(SearchType.QUERY_THEN_FETCH).addSort("_uid", SortOrder.ASC);
+                SearchResponse sr = srb.execute().actionGet();
+                slices.add(new MySearchResponseES(client, sr, keepTimeInMinutes));
+            } else {
+                // TODO make it possible to restrict to a cluster
+                slices.add(new MySearchResponseJson(httpClient.client(), searchHost, searchPort, searchIndexName,
+                        searchType, sliceFilter, basicAuthCredentials, hitsPerPage, withVersion, keepTimeInMinutes,
+                        preference, checkpoint == null ? null : "_uid").readAhead(readAhead));
+            }
         }
 
-        // TODO make async and allow control of process from external (e.g. stopping etc)
-        // or just move stuff into a river?
-        reindex(rsp, newIndexName, newType, withVersion, waitInSeconds, client);
+        boolean completed = false;
+        try {
+            reindex(job, slices, positions, newIndexName, newType, client);
+            // a finished checkpoint must not leave documents waiting for a retry
+            if (checkpoint != null)
+                flushRetries(job, client);
+            completed = !job.isCancelled() && !Thread.currentThread().isInterrupted();
+        } finally {
+            if (checkpoint != null)
+                saveCheckpoint(checkpoint, completed);
+        }
 
-        // TODO reindex again all new items => therefor we need a timestamp field to filter
-        // + how to combine with existing filter?
+        if (timestampField != null && completed) {
+            // reindex again all items which were changed while the previous pass was running
+            int maxPasses = request.paramAsInt("catchUpPasses", 5);
+            long catchUpDocs = request.paramAsLong("catchUpDocs", 1000);
+            for (int pass = 1; pass <= maxPasses && !job.isCancelled(); pass++) {
+                Object nextMark = findHighWaterMark(searchIndexName, searchType, timestampField, filter, client);
+                String deltaFilter = andFilter(filter, createRangeFilter(timestampField, highWaterMark));
+                SearchResponse sr = createScrollSearch(searchIndexName, searchType, deltaFilter,
+                        hitsPerPage, withVersion, keepTimeInMinutes, client).execute().actionGet();
+                long delta = sr.getHits().totalHits();
+                logger.info("Catch-up pass " + pass + " for " + delta + " documents with "
+                        + timestampField + " >= " + highWaterMark);
+                reindex(job, Collections.<MySearchResponse>singletonList(
+                        new MySearchResponseES(client, sr, keepTimeInMinutes)), newIndexName, newType, client);
+                highWaterMark = nextMark;
+                if (delta <= catchUpDocs)
+                    break;
+            }
+        }
 
         logger.info("Finished reindexing of index " + searchIndexName + " into " + newIndexName + ", query " + filter);
+    }
 
-        if (!internalCall)
-            channel.sendResponse(new BytesRestResponse(OK));
+    /**
+     * Returns the highest value of the specified field or null if no document
+     * has this field
+     */
+    Object findHighWaterMark(String index, String type, String field, String filter, Client client) {
+        SearchResponse rsp = client.prepareSearch(index).setTypes(type).setSize(1).setNoFields().
+                setPostFilter(andFilter(filter, createRangeFilter(field, null))).
+                addSort(field, SortOrder.DESC).execute().actionGet();
+        if (rsp.getHits().hits().length == 0)
+            return null;
+        return rsp.getHits().hits()[0].sortValues()[0];
+    }
+
+    /**
+     * Returns a filter for the documents where the field is at least the
+     * specified value or, if the value is null, where the field exists
+     */
+    static String createRangeFilter(String field, Object from) {
+        try {
+            XContentBuilder b = XContentFactory.jsonBuilder().startObject();
+            if (from == null)
+                b.startObject("exists").field("field", field).endObject();
+            else
+                b.startObject("range").startObject(field).field("gte", from).endObject().endObject();
+            return b.endObject().string();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Combines the filters where the first one is optional
+     */
+    static String andFilter(String filter, String other) {
+        if (filter == null || filter.trim().isEmpty())
+            return other;
+        return "{ \"and\" : [" + filter + ", " + other + "] }";
+    }
+
+    private void saveCheckpoint(ReIndexCheckpoint checkpoint, boolean finished) {
+        try {
+            checkpoint.save(finished);
+            logger.info("Saved checkpoint " + checkpoint.id() + (finished ? " as finished" : ""));
+        } catch (Exception ex) {
+            logger.error("Cannot save checkpoint " + checkpoint.id(), ex);
+        }
     }
 
     public SearchRequestBuilder createScrollSearch(String oldIndexName, String oldType, String filter,
@@ -105,82 +478,724 @@ public class ReIndexAction extends BaseRestHandler {
         return srb;
     }
 
+    /**
+     * Splits the shards of the source index into at most readers groups and
+     * returns a search preference for every group. Returns a single null
+     * preference if the whole index should be read with one scroll.
+     */
+    static List<String> createShardPreferences(int readers, int shards) {
+        if (readers <= 1 || shards <= 1)
+            return Collections.singletonList(null);
+
+        readers = Math.min(readers, shards);
+        List<String> preferences = new ArrayList<String>(readers);
+        for (int reader = 0; reader < readers; reader++) {
+            StringBuilder sb = new StringBuilder("_shards:");
+            for (int shard = reader; shard < shards; shard += readers) {
+                if (shard != reader)
+                    sb.append(',');
+                sb.append(shard);
+            }
+            preferences.add(sb.toString());
+        }
+        return preferences;
+    }
+
     public int reindex(MySearchResponse rsp, String newIndex, String newType, boolean withVersion,
             float waitSeconds, Client client) {
-        boolean flushEnabled = false;
+        return reindex(rsp, newIndex, newType, withVersion, waitSeconds, 0, 1, client);
+    }
+
+    /**
+     * Same as the serial reindex if prefetchPages is 0 and bulkThreads is 1.
+     * Otherwise the pages are bulk indexed from bulkThreads worker threads while
+     * the scroll continues until prefetchPages pages are waiting to be indexed.
+     */
+    public int reindex(MySearchResponse rsp, String newIndex, String newType, boolean withVersion,
+            float waitSeconds, int prefetchPages, int bulkThreads, Client client) {
+        return reindex(Collections.singletonList(rsp), newIndex, newType, withVersion, waitSeconds,
+                prefetchPages, bulkThreads, client);
+    }
+
+    /**
+     * Reads all slices in parallel where every slice gets its own bulk
+     * threads. Returns the sum of the collected documents.
+     */
+    public int reindex(List<MySearchResponse> slices, String newIndex, String newType,
+            boolean withVersion, float waitSeconds, int prefetchPages, int bulkThreads, Client client) {
+        ReIndexJob job = new ReIndexJob(newIndex + "/" + newType).withVersion(withVersion).
+                waitSeconds(waitSeconds).prefetchPages(prefetchPages).bulkThreads(bulkThreads);
+        return reindex(job, slices, newIndex, newType, client);
+    }
+
+    /**
+     * Reads all slices in parallel and adds the counts to the progress of the
+     * specified job. Returns the documents collected from this call. The job
+     * ends with this call: the retries are sent and the files are closed.
+     */
+    public int reindex(ReIndexJob job, List<MySearchResponse> slices, String newIndex,
+            String newType, Client client) {
+        try {
+            int collected = reindex(job, slices, null, newIndex, newType, client);
+            flushRetries(job, client);
+            return collected;
+        } finally {
+            finish(job);
+        }
+    }
+
+    /**
+     * Reads the slices as one part of the job, e.g. one search index or type.
+     * The retries which are not due yet are left for the next part.
+     *
+     * @param positions the checkpoint position of every slice which is moved
+     * forward when the documents are indexed or null
+     */
+    public int reindex(final ReIndexJob job, final List<MySearchResponse> slices,
+            final List<ReIndexCheckpoint.Slice> positions, final String newIndex,
+            final String newType, final Client client) {
+        int collected = 0;
+        if (slices.size() == 1) {
+            collected = reindexSlice(job, slices.get(0), positions == null ? null : positions.get(0),
+                    newIndex, newType, client);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(slices.size(),
+                    EsExecutors.daemonThreadFactory(settings, "reindex_scroll"));
+            try {
+                List<Future<Integer>> futures = new ArrayList<Future<Integer>>(slices.size());
+                for (int i = 0; i < slices.size(); i++) {
+                    final MySearchResponse rsp = slices.get(i);
+                    final ReIndexCheckpoint.Slice position = positions == null ? null : positions.get(i);
+                    futures.add(executor.submit(new Callable<Integer>() {
+                        @Override public Integer call() {
+                            return reindexSlice(job, rsp, position, newIndex, newType, client);
+                        }
+                    }));
+                }
+                for (Future<Integer> future : futures) {
+                    collected += future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Reindexing of a slice failed: " + ex.getCause().getMessage(), ex.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        return collected;
+    }
+
+    /**
+     * Ends the job: the documents which still wait for a retry are written to
+     * the dead-letter file and the dump and dead-letter files are closed.
+     * Called once after the last part of the job, also if it failed.
+     */
+    void finish(ReIndexJob job) {
+        deadLetterRetries(job);
+        DeadLetterFile deadLetters = job.deadLetters();
+        if (deadLetters != null) {
+            try {
+                deadLetters.close();
+            } catch (IOException ex) {
+                logger.error("Cannot close " + deadLetters.file(), ex);
+            }
+            if (deadLetters.count() > 0)
+                logger.warn(deadLetters.count() + " failed documents were written to " + deadLetters.file());
+        }
+
+        ReIndexProgress progress = job.progress();
+        if (progress.failed() > 0)
+            logger.warn(progress.failed() + " FAILED documents! " + progress);
+        else
+            logger.info(progress.toString());
+
+        DumpFile dump = job.dump();
+        if (dump != null) {
+            try {
+                dump.close();
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot close " + dump.file(), ex);
+            }
+            logger.info(dump.docs() + " documents were written to " + dump.file());
+        }
+    }
+
+    int reindexSlice(ReIndexJob job, MySearchResponse rsp, ReIndexCheckpoint.Slice position,
+            String newIndex, String newType, Client client) {
+        ReIndexProgress progress = job.progress();
+        AdaptiveBulkSize bulkSize = job.bulkSize();
+        float waitSeconds = job.waitSeconds();
         long total = rsp.hits().totalHits();
+        progress.addTotal(total);
         int collectedResults = 0;
-        int failed = 0;
-        while (true) {
-            if (collectedResults > 0 && waitSeconds > 0) {
-                try {
-                    Thread.sleep(Math.round(waitSeconds * 1000));
-                } catch (InterruptedException ex) {
+        long bytes = 0;
+        MySearchHitList batch = null;
+        long batchBytes = 0;
+        BulkPipeline pipeline = null;
+        if (job.prefetchPages() > 0 || job.bulkThreads() > 1)
+            pipeline = new BulkPipeline(settings, job.prefetchPages(), job.bulkThreads());
+        ExecutorService callbackExecutor = null;
+        if (job.callbackThreads() > 1)
+            callbackExecutor = Executors.newFixedThreadPool(job.callbackThreads(),
+                    EsExecutors.daemonThreadFactory(settings, "reindex_callback"));
+        // the position of a checkpoint needs the last id of a page
+        boolean keepOrder = job.keepCallbackOrder() || position != null;
+        try {
+            while (true) {
+                if (collectedResults > 0 && waitSeconds > 0) {
+                    try {
+                        Thread.sleep(Math.round(waitSeconds * 1000));
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                if (job.isCancelled()) {
+                    logger.info("reindex job " + job.id() + " cancelled after " + collectedResults + " documents");
+                    if (rsp instanceof ClearableScroll)
+                        ((ClearableScroll) rsp).clearScroll();
+                    break;
+                }
+                StopWatch queryWatch = new StopWatch().start();
+                int currentResults = rsp.doScoll();
+                queryWatch.stop();
+                job.metrics().onScroll(queryWatch.totalTime().millis(), currentResults, rsp.bytes() - bytes);
+                if (currentResults == 0)
                     break;
+
+                MySearchHits res = callbackExecutor == null ? callback(rsp.hits())
+                        : callback(callbackExecutor, job.callbackThreads(), rsp.hits(), currentResults, keepOrder);
+                if (res == null)
+                    break;
+                collectedResults += currentResults;
+                if (bulkSize == null && job.bulkBytes() <= 0) {
+                    String lastId = null;
+                    if (position != null) {
+                        MySearchHitList page = MySearchHitList.copy(res, currentResults);
+                        if (!page.isEmpty())
+                            lastId = page.get(page.size() - 1).id();
+                        res = page;
+                    }
+                    dispatch(pipeline, job, res, currentResults, position, lastId, newIndex, newType, client);
+                } else {
+                    // cut the hits into bulks by documents and bytes, for the adaptive bulk size independent of the pages
+                    int maxDocs = bulkSize == null ? currentResults : bulkSize.bulkDocs();
+                    long maxBytes = maxBulkBytes(job);
+                    for (MySearchHit hit : res.getHits()) {
+                        BytesReference source = sourceRef(hit);
+                        long hitBytes = source == null ? 0 : source.length();
+                        if (batch != null && batchBytes + hitBytes > maxBytes) {
+                            // an oversized document is sent alone
+                            dispatch(pipeline, job, batch, batch.size(), position, batch.get(batch.size() - 1).id(),
+                                    newIndex, newType, client);
+                            batch = null;
+                            batchBytes = 0;
+                        }
+                        if (batch == null)
+                            batch = new MySearchHitList(maxDocs, total);
+                        batch.add(hit);
+                        batchBytes += hitBytes;
+                        if (batch.size() >= maxDocs || batchBytes >= maxBytes) {
+                            dispatch(pipeline, job, batch, batch.size(), position, hit.id(), newIndex, newType, client);
+                            batch = null;
+                            batchBytes = 0;
+                        }
+                    }
+                    if (bulkSize == null && batch != null) {
+                        dispatch(pipeline, job, batch, batch.size(), position, batch.get(batch.size() - 1).id(),
+                                newIndex, newType, client);
+                        batch = null;
+                        batchBytes = 0;
+                    }
+                }
+                logger.debug("Progress " + collectedResults + "/" + total
+                        + ". Time of query:" + queryWatch.totalTime().millis() + "ms, failed:" + progress.failed());
+                progress.addCollected(currentResults);
+                progress.addBytes(rsp.bytes() - bytes);
+                bytes = rsp.bytes();
+            }
+            if (batch != null)
+                dispatch(pipeline, job, batch, batch.size(), position, batch.get(batch.size() - 1).id(),
+                        newIndex, newType, client);
+            if (pipeline != null)
+                pipeline.awaitCompletion();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pipeline != null)
+                pipeline.close();
+            if (callbackExecutor != null)
+                callbackExecutor.shutdownNow();
+        }
+        return collectedResults;
+    }
+
+    /**
+     * Cuts the page into the specified number of parts and calls the callback
+     * for every part in the executor. Returns the hits of all parts, in the
+     * order of the page or in the order the parts were done, or null if the
+     * callback returned null for a part.
+     */
+    MySearchHits callback(ExecutorService executor, int parts, MySearchHits hits, int size, boolean keepOrder)
+            throws InterruptedException {
+        MySearchHitList page = MySearchHitList.copy(hits, size);
+        if (page.isEmpty())
+            return callback(page);
+        parts = Math.max(1, Math.min(parts, page.size()));
+        int partSize = (page.size() + parts - 1) / parts;
+        CompletionService<MySearchHits> completion = new ExecutorCompletionService<MySearchHits>(executor);
+        List<Future<MySearchHits>> futures = new ArrayList<Future<MySearchHits>>(parts);
+        for (int from = 0; from < page.size(); from += partSize) {
+            final MySearchHitList part = new MySearchHitList(partSize, page.totalHits());
+            for (int i = from; i < Math.min(page.size(), from + partSize); i++) {
+                part.add(page.get(i));
+            }
+            futures.add(completion.submit(new Callable<MySearchHits>() {
+                @Override public MySearchHits call() {
+                    return callback(part);
+                }
+            }));
+        }
+
+        MySearchHitList res = new MySearchHitList(page.size(), page.totalHits());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                MySearchHits partResult = keepOrder ? futures.get(i).get() : completion.take().get();
+                if (partResult == null)
+                    return null;
+                for (MySearchHit hit : partResult.getHits()) {
+                    res.add(hit);
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Callback failed: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            for (Future<MySearchHits> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return res;
+    }
+
+    private static long maxBulkBytes(ReIndexJob job) {
+        long maxBytes = job.bulkBytes() > 0 ? job.bulkBytes() : Long.MAX_VALUE;
+        if (job.bulkSize() != null)
+            maxBytes = Math.min(maxBytes, job.bulkSize().bulkBytes());
+        return maxBytes;
+    }
+
+    /**
+     * The source of the hit to feed the bulk request, without a copy for the
+     * hits of the local cluster
+     */
+    static BytesReference sourceRef(MySearchHit hit) {
+        if (hit instanceof MySearchResponseES.MySearchHitES)
+            return ((MySearchResponseES.MySearchHitES) hit).sourceRef();
+        byte[] source = hit.source();
+        return source == null ? null : new BytesArray(source);
+    }
+
+    static long sourceBytes(MySearchHits hits) {
+        long bytes = 0;
+        for (MySearchHit hit : hits.getHits()) {
+            BytesReference source = sourceRef(hit);
+            if (source != null)
+                bytes += source.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Bulk indexes the hits in the calling thread or hands them over to the
+     * bulk threads of the pipeline. Moves the checkpoint position forward to
+     * lastId when the hits are indexed. Waits before the hand over if the
+     * buffer of the job is full or the rate limits of the job are reached.
+     */
+    private void dispatch(BulkPipeline pipeline, final ReIndexJob job, MySearchHits hits, int size,
+            final ReIndexCheckpoint.Slice position, String lastId,
+            final String newIndex, final String newType, final Client client) throws InterruptedException {
+        AdaptiveBulkSize bulkSize = job.bulkSize();
+        if (bulkSize != null && bulkSize.delayMillis() > 0)
+            Thread.sleep(bulkSize.delayMillis());
+
+        job.throttle(size, job.maxBytesPerSec() > 0 ? sourceBytes(hits) : 0);
+
+        final long seq = position == null ? -1 : position.dispatched(lastId, size);
+        final RetryQueue.Owner batch = position == null ? null : position.batch(seq);
+        if (pipeline == null) {
+            bulkIndex(job, hits, batch, newIndex, newType, client);
+            if (position != null)
+                position.done(seq);
+            return;
+        }
+        // the hits of a scroll page are only valid until the next scroll => copy them
+        final MySearchHits page = hits instanceof MySearchHitList ? hits : MySearchHitList.copy(hits, size);
+        final ReIndexMetrics metrics = job.metrics();
+        final ByteBudget buffer = job.buffer();
+        final long bytes = buffer == null ? 0 : sourceBytes(page);
+        if (buffer != null)
+            buffer.acquire(bytes);
+        metrics.bulkQueued();
+        boolean submitted = false;
+        try {
+            pipeline.submit(new Runnable() {
+                @Override public void run() {
+                    metrics.bulkDequeued();
+                    try {
+                        bulkIndex(job, page, batch, newIndex, newType, client);
+                    } finally {
+                        if (buffer != null)
+                            buffer.release(bytes);
+                    }
+                    if (position != null)
+                        position.done(seq);
                 }
+            });
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                metrics.bulkDequeued();
+                if (buffer != null)
+                    buffer.release(bytes);
+            }
+        }
+    }
+
+    void bulkIndex(ReIndexJob job, MySearchHits hits, String newIndex, String newType, Client client) {
+        bulkIndex(job, hits, null, newIndex, newType, client);
+    }
+
+    /**
+     * Sends the hits together with the due retries as one bulk request or
+     * appends them to the dump file of the job.
+     *
+     * @param batch is told about the retries of the hits or null
+     */
+    void bulkIndex(ReIndexJob job, MySearchHits hits, RetryQueue.Owner batch, String newIndex, String newType,
+            Client client) {
+        DumpFile dump = job.dump();
+        if (dump != null) {
+            StopWatch writeWatch = new StopWatch().start();
+            try {
+                dump.write(hits);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot write to " + dump.file(), ex);
+            }
+            job.metrics().onBulk(writeWatch.stop().totalTime().millis(), 0);
+            return;
+        }
+        List<IndexRequest> requests = createRequests(hits, newIndex, newType, job.withVersion(), job.transform(), job);
+        if (job.versionType() != VersionType.INTERNAL || job.opType() != IndexRequest.OpType.INDEX) {
+            for (IndexRequest request : requests) {
+                request.versionType(job.versionType()).opType(job.opType());
+            }
+        }
+        if (job.digests() != null)
+            requests = skipUnchanged(job, requests);
+        bulkIndex(job, requests, batch, job.retries().pollDue(Math.max(1, requests.size())), client);
+    }
+
+    /**
+     * Removes the requests whose document the target already has or which were
+     * already sent from this job
+     */
+    private List<IndexRequest> skipUnchanged(ReIndexJob job, List<IndexRequest> requests) {
+        List<IndexRequest> changed = new ArrayList<IndexRequest>(requests.size());
+        for (IndexRequest request : requests) {
+            if (job.digests().add(DigestSet.hash(request.index(), request.type(), request.id(), request.source())))
+                changed.add(request);
+        }
+        job.progress().addSkipped(requests.size() - changed.size());
+        return changed;
+    }
+
+    /**
+     * Sends the requests as one bulk request and feeds the latency into the
+     * adaptive bulk size. If the target cluster rejects the whole request it
+     * is retried after the delay of the adaptive bulk size. Failed documents
+     * are scheduled for a retry or, if the failure is permanent, counted and
+     * written into the dead letter file. Waits for a free permit if the job
+     * limits the concurrent bulk requests. If the job groups the bulks the
+     * requests are sent per target shard or node in parallel.
+     *
+     * @param batch the owner of the retries of the requests or null
+     */
+    void bulkIndex(ReIndexJob job, List<IndexRequest> requests, RetryQueue.Owner batch,
+            List<RetryQueue.Retry> retries, Client client) {
+        Map<IndexRequest, RetryQueue.Retry> retried = new IdentityHashMap<IndexRequest, RetryQueue.Retry>(retries.size());
+        if (!retries.isEmpty()) {
+            requests = new ArrayList<IndexRequest>(requests);
+            for (RetryQueue.Retry retry : retries) {
+                requests.add(retry.request);
+                retried.put(retry.request, retry);
+            }
+        }
+
+        Semaphore permits = job.bulkPermits();
+        if (permits != null)
+            permits.acquireUninterruptibly();
+        try {
+            if (job.shardGroups() == null)
+                bulkIndexWithAttempts(job, requests, batch, retried, client);
+            else
+                bulkIndexGroups(job, requests, batch, retried, client);
+        } finally {
+            if (permits != null)
+                permits.release();
+        }
+    }
+
+    private void bulkIndexGroups(final ReIndexJob job, List<IndexRequest> requests, final RetryQueue.Owner batch,
+            final Map<IndexRequest, RetryQueue.Retry> retried, final Client client) {
+        ShardGroups groups = job.shardGroups();
+        Map<String, List<IndexRequest>> byGroup = groups.group(requests, client);
+        if (byGroup.size() == 1) {
+            Semaphore groupPermits = groups.permits(byGroup.keySet().iterator().next());
+            groupPermits.acquireUninterruptibly();
+            try {
+                bulkIndexWithAttempts(job, requests, batch, retried, client);
+            } finally {
+                groupPermits.release();
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(byGroup.size());
+        try {
+            for (Map.Entry<String, List<IndexRequest>> e : byGroup.entrySet()) {
+                final List<IndexRequest> group = e.getValue();
+                final Semaphore groupPermits = groups.permits(e.getKey());
+                futures.add(groupExecutor.submit(new Runnable() {
+                    @Override public void run() {
+                        groupPermits.acquireUninterruptibly();
+                        try {
+                            bulkIndexWithAttempts(job, group, batch, retried, client);
+                        } finally {
+                            groupPermits.release();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new RuntimeException("Bulk of a group failed: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
             }
-            StopWatch queryWatch = new StopWatch().start();
-            int currentResults = rsp.doScoll();
-            if (currentResults == 0)
-                break;
+        }
+    }
 
-            MySearchHits res = callback(rsp.hits());
-            if (res == null)
-                break;
-            queryWatch.stop();
+    private void bulkIndexWithAttempts(ReIndexJob job, List<IndexRequest> requests, RetryQueue.Owner batch,
+            Map<IndexRequest, RetryQueue.Retry> retried, Client client) {
+        AdaptiveBulkSize bulkSize = job.bulkSize();
+        RetryQueue retries = job.retries();
+        for (int attempt = 1;; attempt++) {
             StopWatch updateWatch = new StopWatch().start();
-            failed += bulkUpdate(res, newIndex, newType, withVersion, client).size();
-            if (flushEnabled)
-                client.admin().indices().flush(new FlushRequest(newIndex)).actionGet();
-
-            updateWatch.stop();
-            collectedResults += currentResults;
-            logger.debug("Progress " + collectedResults + "/" + total
-                    + ". Time of update:" + updateWatch.totalTime().getSeconds() + " query:"
-                    + queryWatch.totalTime().getSeconds() + " failed:" + failed);
-        }
-        String str = "found " + total + ", collected:" + collectedResults
-                + ", transfered:" + (float) rsp.bytes() / (1 << 20) + "MB";
-        if (failed > 0)
-            logger.warn(failed + " FAILED documents! " + str);
-        else
-            logger.info(str);
-        return collectedResults;
+            try {
+                BulkResult res;
+                job.metrics().bulkStarted();
+                try {
+                    res = bulkUpdate(requests, client);
+                } finally {
+                    job.metrics().bulkFinished();
+                }
+                updateWatch.stop();
+                job.metrics().onBulk(updateWatch.totalTime().millis(), res.rejected());
+                if (bulkSize != null)
+                    bulkSize.onBulk(updateWatch.totalTime().millis(), res.rejected());
+                handleFailures(job, res, requests, batch, retried);
+                logger.debug("Time of update:" + updateWatch.totalTime().getMillis() + "ms, failed:" + res.failed().size());
+                return;
+            } catch (ElasticsearchException ex) {
+                boolean rejected = ExceptionsHelper.unwrapCause(ex) instanceof EsRejectedExecutionException;
+                if (rejected)
+                    job.metrics().onRejectedBulk();
+                if (!rejected || attempt > retries.maxRetries())
+                    throw ex;
+
+                // the adaptive size only shrinks the next bulks, this one is sent again as it is
+                long delay = retries.backoffMillis(attempt - 1);
+                if (bulkSize != null) {
+                    bulkSize.onRejected();
+                    delay = Math.max(delay, bulkSize.delayMillis());
+                }
+                logger.warn("Bulk rejected, retry " + attempt + " in " + delay + "ms"
+                        + (bulkSize == null ? "" : " with " + bulkSize));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex2) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
     }
 
-    Collection<Integer> bulkUpdate(MySearchHits objects, String indexName,
-            String newType, boolean withVersion, Client client) {
-        BulkRequestBuilder brb = client.prepareBulk();
+    /**
+     * Schedules the temporarily failed requests for a retry and counts the
+     * others as failed. Tells the owners when a request starts to wait for a
+     * retry and when a retried request is indexed or failed permanently.
+     */
+    private void handleFailures(ReIndexJob job, BulkResult res, List<IndexRequest> requests, RetryQueue.Owner batch,
+            Map<IndexRequest, RetryQueue.Retry> retried) {
+        job.progress().addVersionConflicts(res.versionConflicts());
+        Set<IndexRequest> failed = Collections.newSetFromMap(new IdentityHashMap<IndexRequest, Boolean>());
+        for (BulkResult.Failure failure : res.failed()) {
+            failed.add(failure.request);
+            RetryQueue.Retry previous = retried.get(failure.request);
+            RetryQueue.Owner owner = previous == null ? batch : previous.owner;
+            if (job.retries().offer(failure.request, previous == null ? 0 : previous.attempts, failure.status, owner)) {
+                job.progress().addRetried(1);
+                if (previous == null && owner != null)
+                    owner.retryQueued();
+                continue;
+            }
+
+            logger.debug("Failed to index " + failure.request.id() + " " + failure.status + " " + failure.message);
+            failed(job, failure.request);
+            if (previous != null && owner != null)
+                owner.retryResolved();
+        }
+        if (retried.isEmpty())
+            return;
+        for (IndexRequest request : requests) {
+            RetryQueue.Retry retry = retried.get(request);
+            if (retry != null && retry.owner != null && !failed.contains(request))
+                retry.owner.retryResolved();
+        }
+    }
+
+    /**
+     * Counts the document as failed and writes it into the dead letter file
+     */
+    private void failed(ReIndexJob job, IndexRequest request) {
+        job.progress().addFailed(1);
+        DeadLetterFile deadLetters = job.deadLetters();
+        if (deadLetters != null) {
+            try {
+                deadLetters.write(request);
+            } catch (IOException ex) {
+                logger.error("Cannot write " + request.id() + " to " + deadLetters.file(), ex);
+            }
+        }
+    }
+
+    /**
+     * Sends the remaining retries of the job when they are due. Blocks until
+     * all documents are indexed or failed permanently. If the job is
+     * cancelled the retries which are not sent are counted as failed.
+     */
+    void flushRetries(ReIndexJob job, Client client) {
+        RetryQueue retries = job.retries();
+        try {
+            while (!retries.isEmpty() && !job.isCancelled()) {
+                RetryQueue.Retry first = retries.poll(100);
+                if (first == null)
+                    continue;
+                List<RetryQueue.Retry> due = new ArrayList<RetryQueue.Retry>();
+                due.add(first);
+                due.addAll(retries.pollDue(MAX_RETRIES_PER_BULK));
+                bulkIndex(job, Collections.<IndexRequest>emptyList(), null, due, client);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deadLetterRetries(job);
+        }
+    }
+
+    /**
+     * Counts the documents which still wait for a retry as failed
+     */
+    private void deadLetterRetries(ReIndexJob job) {
+        for (RetryQueue.Retry retry : job.retries().clear()) {
+            failed(job, retry.request);
+            if (retry.owner != null)
+                retry.owner.retryResolved();
+        }
+    }
+
+    List<IndexRequest> createRequests(MySearchHits objects, String indexName, String newType, boolean withVersion) {
+        return createRequests(objects, indexName, newType, withVersion, null, null);
+    }
+
+    /**
+     * @param transform changes the documents before they are added or null
+     * @param job counts the documents which the transform cannot change as
+     * failed and writes them to its dead letter file, or null to only log them
+     */
+    List<IndexRequest> createRequests(MySearchHits objects, String indexName, String newType, boolean withVersion,
+            ReIndexTransform transform, ReIndexJob job) {
+        List<IndexRequest> requests = new ArrayList<IndexRequest>();
         for (MySearchHit hit : objects.getHits()) {
             if (hit.id() == null || hit.id().isEmpty()) {
                 logger.warn("Skipped object without id when bulkUpdate:" + hit);
                 continue;
             }
+            BytesReference source = sourceRef(hit);
+            if (source == null) {
+                logger.warn("Skipped object without source when bulkUpdate:" + hit.id());
+                continue;
+            }
 
+            IndexRequest original = null;
             try {
-                IndexRequest indexReq = Requests.indexRequest(indexName).type(newType).id(hit.id()).source(hit.source());
-                if (withVersion)
-                    indexReq.version(hit.version());
-                if (hit.parent() != null && !hit.parent().isEmpty()) {
-                    indexReq.parent(hit.parent());
+                original = indexRequest(hit, indexName, newType, hit.id(), source, withVersion);
+                if (transform == null) {
+                    requests.add(original);
+                    continue;
                 }
-                brb.add(indexReq);
+                ReIndexTransform.Doc doc = transform.apply(indexName, newType, hit.id(), source);
+                if (doc != null)
+                    requests.add(indexRequest(hit, doc.index, doc.type, doc.id, doc.source, withVersion));
             } catch (Exception ex) {
-                logger.warn("Cannot add object:" + hit + " to bulkIndexing action." + ex.getMessage());
+                if (job == null || original == null) {
+                    logger.warn("Cannot add object:" + hit + " to bulkIndexing action." + ex.getMessage());
+                    continue;
+                }
+                logger.warn("Cannot transform " + hit.id() + ": " + ex.getMessage());
+                failed(job, original);
             }
         }
-        if (brb.numberOfActions() > 0) {
-            BulkResponse rsp = brb.execute().actionGet();
-            if (rsp.hasFailures()) {
-                List<Integer> list = new ArrayList<Integer>(rsp.getItems().length);
-                for (BulkItemResponse br : rsp.getItems()) {
-                    if (br.isFailed())
-                        list.add(br.getItemId());
-                }
-                return list;
+        return requests;
+    }
+
+    private static IndexRequest indexRequest(MySearchHit hit, String index, String type, String id,
+            BytesReference source, boolean withVersion) {
+        IndexRequest indexReq = Requests.indexRequest(index).type(type).id(id).source(source, false);
+        if (withVersion)
+            indexReq.version(hit.version());
+        if (hit.parent() != null && !hit.parent().isEmpty())
+            indexReq.parent(hit.parent());
+        return indexReq;
+    }
+
+    BulkResult bulkUpdate(List<IndexRequest> requests, Client client) {
+        BulkResult result = new BulkResult();
+        if (requests.isEmpty())
+            return result;
+
+        BulkRequestBuilder brb = client.prepareBulk();
+        for (IndexRequest indexReq : requests) {
+            brb.add(indexReq);
+        }
+        BulkResponse rsp = brb.execute().actionGet();
+        if (rsp.hasFailures()) {
+            for (BulkItemResponse br : rsp.getItems()) {
+                if (br.isFailed())
+                    result.addFailed(requests.get(br.getItemId()), br.getFailure().getStatus(),
+                            br.getFailureMessage());
             }
         }
-        return Collections.emptyList();
+        return result;
     }
 
     /**
@@ -0,0 +1,258 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.indices.IndexMissingException;
+
+/**
+ * The persisted position of a reindex. The documents of every slice are read
+ * sorted by _uid and the _uid of the last indexed document is stored together
+ * with the number of collected documents into the .reindex-state index. A reindex with the same
+ * checkpoint name continues after this _uid.
+ *
+ * A batch only counts as done when its documents which failed temporarily
+ * are indexed by a retry or written to the dead letter file, so a resumed
+ * reindex reads the documents which still waited for a retry again.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexCheckpoint {
+
+    public static final String INDEX = ".reindex-state";
+    public static final String TYPE = "checkpoint";
+    private final ESLogger logger = Loggers.getLogger(getClass());
+    private final Client client;
+    private final String id;
+    private final String uidPrefix;
+    private final long intervalMillis;
+    private final Map<String, Slice> slices = new LinkedHashMap<String, Slice>();
+    private long lastSave = System.currentTimeMillis();
+    private boolean finished;
+
+    /**
+     * @param type the type of the documents to build the _uid from the id
+     * @param intervalMillis the minimum time between two saves
+     */
+    ReIndexCheckpoint(Client client, String id, String type, long intervalMillis) {
+        this.client = client;
+        this.id = id;
+        this.uidPrefix = type + "#";
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Loads the stored checkpoint or creates an empty one. The documents
+     * collected before are added to the specified progress if the checkpoint
+     * is not finished.
+     */
+    static ReIndexCheckpoint load(Client client, String id, String type, ReIndexProgress progress,
+            long intervalMillis) {
+        ReIndexCheckpoint checkpoint = new ReIndexCheckpoint(client, id, type, intervalMillis);
+        GetResponse rsp;
+        try {
+            rsp = client.prepareGet(INDEX, TYPE, id).execute().actionGet();
+        } catch (IndexMissingException ex) {
+            return checkpoint;
+        }
+        if (!rsp.isExists())
+            return checkpoint;
+
+        Map<String, Object> source = rsp.getSourceAsMap();
+        checkpoint.finished = Boolean.TRUE.equals(source.get("finished"));
+        if (checkpoint.finished)
+            return checkpoint;
+
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, Object>> storedSlices = (Map<String, Map<String, Object>>) source.get("slices");
+        for (Map.Entry<String, Map<String, Object>> e : storedSlices.entrySet()) {
+            Slice slice = checkpoint.slice(e.getKey());
+            slice.lastId = (String) e.getValue().get("last_id");
+            slice.collected = ((Number) e.getValue().get("collected")).longValue();
+            progress.addTotal(slice.collected);
+            progress.addCollected(slice.collected);
+        }
+        return checkpoint;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * True if the reindex of this checkpoint was already completed
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the position of the specified slice
+     *
+     * @param key the search preference of the slice or _all
+     */
+    public synchronized Slice slice(String key) {
+        Slice slice = slices.get(key);
+        if (slice == null) {
+            slice = new Slice();
+            slices.put(key, slice);
+        }
+        return slice;
+    }
+
+    /**
+     * Returns the filter which only accepts documents after the stored
+     * position of the slice, combined with the specified filter.
+     */
+    String createFilter(Slice slice, String filter) {
+        String lastId = slice.lastId();
+        if (lastId == null)
+            return filter;
+        String range;
+        try {
+            range = XContentFactory.jsonBuilder().startObject().startObject("range").startObject("_uid").
+                    field("gt", uidPrefix + lastId).endObject().endObject().endObject().string();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return ReIndexAction.andFilter(filter, range);
+    }
+
+    /**
+     * Stores the checkpoint if the last save is older than the interval
+     */
+    void maybeSave() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastSave < intervalMillis)
+                return;
+        }
+        save(false);
+    }
+
+    /**
+     * Stores the checkpoint. A finished checkpoint skips the reindex if it is
+     * resumed.
+     */
+    synchronized void save(boolean finished) {
+        this.finished = finished;
+        lastSave = System.currentTimeMillis();
+        try {
+            XContentBuilder b = XContentFactory.jsonBuilder().startObject().
+                    field("finished", finished).
+                    field("updated", lastSave).
+                    startObject("slices");
+            for (Map.Entry<String, Slice> e : slices.entrySet()) {
+                b.startObject(e.getKey()).
+                        field("last_id", e.getValue().lastId()).
+                        field("collected", e.getValue().collected()).
+                        endObject();
+            }
+            b.endObject().endObject();
+            client.prepareIndex(INDEX, TYPE, id).setSource(b).execute().actionGet();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        logger.debug("saved checkpoint " + id);
+    }
+
+    /**
+     * The position of one slice. The batches are indexed in parallel and can
+     * complete in a different order - the position only moves forward to the
+     * last batch which completed together with all its predecessors.
+     */
+    public class Slice {
+
+        private final TreeMap<Long, Batch> pending = new TreeMap<Long, Batch>();
+        private long nextSeq;
+        private String lastId;
+        private long collected;
+
+        /**
+         * Registers a batch before it is indexed and returns its sequence
+         * number for done
+         *
+         * @param lastId the id of the last document of the batch
+         */
+        synchronized long dispatched(String lastId, int docs) {
+            long seq = nextSeq++;
+            pending.put(seq, new Batch(this, lastId, docs));
+            return seq;
+        }
+
+        /**
+         * Returns the owner of the retries of the documents of the batch
+         */
+        synchronized RetryQueue.Owner batch(long seq) {
+            return pending.get(seq);
+        }
+
+        /**
+         * Marks the batch as sent and saves the checkpoint if it is due
+         */
+        void done(long seq) {
+            synchronized (this) {
+                pending.get(seq).sent = true;
+                moveForward();
+            }
+            maybeSave();
+        }
+
+        private void moveForward() {
+            while (!pending.isEmpty() && pending.firstEntry().getValue().isDone()) {
+                Batch batch = pending.pollFirstEntry().getValue();
+                if (batch.lastId != null)
+                    lastId = batch.lastId;
+                collected += batch.docs;
+            }
+        }
+
+        public synchronized String lastId() {
+            return lastId;
+        }
+
+        public synchronized long collected() {
+            return collected;
+        }
+    }
+
+    private class Batch implements RetryQueue.Owner {
+
+        final Slice slice;
+        final String lastId;
+        final int docs;
+        // guarded by the slice
+        boolean sent;
+        int retries;
+
+        Batch(Slice slice, String lastId, int docs) {
+            this.slice = slice;
+            this.lastId = lastId;
+            this.docs = docs;
+        }
+
+        boolean isDone() {
+            return sent && retries == 0;
+        }
+
+        @Override public void retryQueued() {
+            synchronized (slice) {
+                retries++;
+            }
+        }
+
+        @Override public void retryResolved() {
+            synchronized (slice) {
+                retries--;
+                slice.moveForward();
+            }
+            maybeSave();
+        }
+    }
+}
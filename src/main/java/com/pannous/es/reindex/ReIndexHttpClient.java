@@ -0,0 +1,74 @@
+package com.pannous.es.reindex;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DecompressingHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Singleton;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * The HTTP client of this node to read from remote clusters. The connections
+ * are pooled and kept alive across scrolls and jobs. The responses are
+ * requested with gzip or deflate compression and decompressed while they are
+ * parsed.
+ *
+ * @author Peter Karich
+ */
+@Singleton
+public class ReIndexHttpClient extends AbstractLifecycleComponent<ReIndexHttpClient> {
+
+    private final HttpClient client;
+
+    @Inject public ReIndexHttpClient(Settings settings) {
+        super(settings);
+        client = createClient(settings);
+    }
+
+    /**
+     * Creates a client configured by the reindex.http.* settings
+     */
+    static HttpClient createClient(Settings settings) {
+        PoolingClientConnectionManager connManager = new PoolingClientConnectionManager();
+        connManager.setMaxTotal(settings.getAsInt("reindex.http.max_connections", 100));
+        connManager.setDefaultMaxPerRoute(settings.getAsInt("reindex.http.max_connections_per_route", 20));
+
+        BasicHttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, (int) settings.getAsTime("reindex.http.connect_timeout",
+                TimeValue.timeValueSeconds(20)).millis());
+        HttpConnectionParams.setSoTimeout(params, (int) settings.getAsTime("reindex.http.socket_timeout",
+                TimeValue.timeValueMinutes(5)).millis());
+        HttpConnectionParams.setSocketBufferSize(params, (int) settings.getAsBytesSize("reindex.http.socket_buffer_size",
+                new ByteSizeValue(64 << 10)).bytes());
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpClient client = new DefaultHttpClient(connManager, params);
+        if (settings.getAsBoolean("reindex.http.compression", true))
+            client = new DecompressingHttpClient(client);
+        return client;
+    }
+
+    public HttpClient client() {
+        return client;
+    }
+
+    @Override protected void doStart() throws ElasticsearchException {
+    }
+
+    @Override protected void doStop() throws ElasticsearchException {
+    }
+
+    @Override protected void doClose() throws ElasticsearchException {
+        client.getConnectionManager().shutdown();
+    }
+}
@@ -0,0 +1,513 @@
+package com.pannous.es.reindex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.VersionType;
+
+/**
+ * The options and the live progress of one reindex call. A job can be
+ * cancelled from a different thread - the running scrolls stop after their
+ * current page and clear their scroll.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexJob implements ToXContent {
+
+    public enum State {
+
+        RUNNING, FINISHED, FAILED, CANCELLED
+    }
+    private final String id;
+    private final String description;
+    private final ReIndexProgress progress = new ReIndexProgress();
+    private final ReIndexMetrics metrics = new ReIndexMetrics();
+    private final List<KeyRangePartitions> partitions = new CopyOnWriteArrayList<KeyRangePartitions>();
+    private final long startTime = System.currentTimeMillis();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile long endTime = -1;
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelled;
+    private volatile String error;
+    private boolean withVersion;
+    private VersionType versionType = VersionType.INTERNAL;
+    private IndexRequest.OpType opType = IndexRequest.OpType.INDEX;
+    private float waitSeconds;
+    private int prefetchPages;
+    private int bulkThreads = 1;
+    private int callbackThreads = 1;
+    private boolean keepCallbackOrder = true;
+    private AdaptiveBulkSize bulkSize;
+    private RetryQueue retries = new RetryQueue(3, 500);
+    private DeadLetterFile deadLetters;
+    private DumpFile dump;
+    private DigestSet digests;
+    private ShardGroups shardGroups;
+    private final TokenBucket docsLimit = new TokenBucket(0);
+    private final TokenBucket bytesLimit = new TokenBucket(0);
+    private String checkpoint;
+    private long checkpointIntervalMillis = 10000;
+    private ReIndexTransform transform;
+    private Semaphore bulkPermits;
+    private long bulkBytes;
+    private ByteBudget buffer;
+
+    public ReIndexJob(String description) {
+        this.id = Strings.randomBase64UUID();
+        this.description = description;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String description() {
+        return description;
+    }
+
+    public ReIndexProgress progress() {
+        return progress;
+    }
+
+    public ReIndexMetrics metrics() {
+        return metrics;
+    }
+
+    void addPartitions(KeyRangePartitions keyRanges) {
+        partitions.add(keyRanges);
+    }
+
+    /**
+     * The read part of the key space of the partitioned scrolls between 0 and
+     * 1, -1 if the scrolls are not partitioned by a field
+     */
+    public float keySpaceProgress() {
+        if (partitions.isEmpty())
+            return -1;
+        float sum = 0;
+        for (KeyRangePartitions keyRanges : partitions) {
+            sum += keyRanges.progress();
+        }
+        return sum / partitions.size();
+    }
+
+    public boolean withVersion() {
+        return withVersion;
+    }
+
+    public ReIndexJob withVersion(boolean withVersion) {
+        this.withVersion = withVersion;
+        return this;
+    }
+
+    public VersionType versionType() {
+        return versionType;
+    }
+
+    /**
+     * How the target compares the version of the search hit with its own
+     * version. External versioning implies withVersion so that the target
+     * rejects older documents.
+     */
+    public ReIndexJob versionType(VersionType versionType) {
+        if (versionType != VersionType.INTERNAL && versionType != VersionType.EXTERNAL
+                && versionType != VersionType.EXTERNAL_GTE)
+            throw new IllegalArgumentException("versionType has to be internal, external or external_gte but was "
+                    + versionType.name().toLowerCase(Locale.ROOT));
+        this.versionType = versionType;
+        if (versionType != VersionType.INTERNAL)
+            withVersion = true;
+        return this;
+    }
+
+    public IndexRequest.OpType opType() {
+        return opType;
+    }
+
+    /**
+     * With create the documents which the target already has are not
+     * overwritten but counted as version conflicts
+     */
+    public ReIndexJob opType(IndexRequest.OpType opType) {
+        this.opType = opType;
+        return this;
+    }
+
+    public double maxDocsPerSec() {
+        return docsLimit.rate();
+    }
+
+    /**
+     * Limits the documents which are sent per second, 0 for no limit. Can be
+     * changed while the job is running.
+     */
+    public ReIndexJob maxDocsPerSec(double maxDocsPerSec) {
+        docsLimit.rate(maxDocsPerSec);
+        return this;
+    }
+
+    public double maxBytesPerSec() {
+        return bytesLimit.rate();
+    }
+
+    /**
+     * Limits the source bytes which are sent per second, 0 for no limit. Can
+     * be changed while the job is running.
+     */
+    public ReIndexJob maxBytesPerSec(double maxBytesPerSec) {
+        bytesLimit.rate(maxBytesPerSec);
+        return this;
+    }
+
+    /**
+     * Waits until the specified documents can be sent without exceeding the
+     * limits of the job
+     */
+    void throttle(int docs, long bytes) throws InterruptedException {
+        docsLimit.acquire(docs);
+        bytesLimit.acquire(bytes);
+    }
+
+    public float waitSeconds() {
+        return waitSeconds;
+    }
+
+    /**
+     * pause the specified time after every request pair (one search+one bulk)
+     */
+    public ReIndexJob waitSeconds(float waitSeconds) {
+        this.waitSeconds = waitSeconds;
+        return this;
+    }
+
+    public int prefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * How many fetched pages can wait for a free bulk thread
+     */
+    public ReIndexJob prefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+        return this;
+    }
+
+    public int bulkThreads() {
+        return bulkThreads;
+    }
+
+    public ReIndexJob bulkThreads(int bulkThreads) {
+        this.bulkThreads = bulkThreads;
+        return this;
+    }
+
+    public int callbackThreads() {
+        return callbackThreads;
+    }
+
+    public boolean keepCallbackOrder() {
+        return keepCallbackOrder;
+    }
+
+    /**
+     * Calls the callback of the reindex action for parts of every page in
+     * the specified number of threads. If keepOrder is false the hits are
+     * indexed in the order the parts are done. The order is always kept for
+     * a checkpoint.
+     */
+    public ReIndexJob callbackThreads(int callbackThreads, boolean keepOrder) {
+        this.callbackThreads = callbackThreads;
+        this.keepCallbackOrder = keepOrder;
+        return this;
+    }
+
+    /**
+     * Null if the number of concurrent bulk requests is only limited by the
+     * bulk threads of every scroll
+     */
+    Semaphore bulkPermits() {
+        return bulkPermits;
+    }
+
+    /**
+     * Limits the bulk requests which are sent at the same time by all scrolls
+     * of this job, e.g. if several types or slices are read in parallel.
+     * Zero or less for no limit.
+     */
+    public ReIndexJob maxConcurrentBulks(int maxConcurrentBulks) {
+        this.bulkPermits = maxConcurrentBulks > 0 ? new Semaphore(maxConcurrentBulks) : null;
+        return this;
+    }
+
+    /**
+     * Null if every scroll page is indexed with one bulk request
+     */
+    public AdaptiveBulkSize bulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * Cuts the hits into bulk requests of the size tuned by the specified
+     * controller instead of one bulk request per scroll page.
+     */
+    public ReIndexJob bulkSize(AdaptiveBulkSize bulkSize) {
+        this.bulkSize = bulkSize;
+        return this;
+    }
+
+    /**
+     * The maximum bytes of one bulk request, 0 if not limited
+     */
+    public long bulkBytes() {
+        return bulkBytes;
+    }
+
+    /**
+     * Cuts the hits into bulk requests of at most the specified bytes. A
+     * document which is larger is sent in its own bulk request.
+     */
+    public ReIndexJob bulkBytes(long bulkBytes) {
+        this.bulkBytes = bulkBytes;
+        return this;
+    }
+
+    /**
+     * Null if the fetched documents are not limited by their bytes
+     */
+    ByteBudget buffer() {
+        return buffer;
+    }
+
+    /**
+     * Pauses the scrolls while the documents which wait for the bulk threads
+     * or for the response of their bulk request take more than the specified
+     * bytes. Zero or less for no limit.
+     */
+    public ReIndexJob maxBufferBytes(long maxBufferBytes) {
+        this.buffer = maxBufferBytes > 0 ? new ByteBudget(maxBufferBytes) : null;
+        return this;
+    }
+
+    RetryQueue retries() {
+        return retries;
+    }
+
+    /**
+     * Sends documents which failed with a temporary problem again, at most
+     * maxRetries times. The first retry happens after backoffMillis and the
+     * delay doubles with every further retry.
+     */
+    public ReIndexJob retries(int maxRetries, long backoffMillis) {
+        this.retries = new RetryQueue(maxRetries, backoffMillis);
+        return this;
+    }
+
+    DeadLetterFile deadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * The file where the documents are appended which could not be indexed.
+     * Null if they should be only counted.
+     */
+    public ReIndexJob deadLetterFile(File file) {
+        this.deadLetters = file == null ? null : new DeadLetterFile(file);
+        return this;
+    }
+
+    DigestSet digests() {
+        return digests;
+    }
+
+    /**
+     * If true the documents which the target already has with the same source
+     * are not sent again
+     */
+    public ReIndexJob skipUnchanged(boolean skipUnchanged) {
+        this.digests = skipUnchanged ? new DigestSet(0) : null;
+        return this;
+    }
+
+    ShardGroups shardGroups() {
+        return shardGroups;
+    }
+
+    /**
+     * Splits every bulk into one bulk request per target shard or node which
+     * are sent in parallel. Null to send one bulk request.
+     */
+    ReIndexJob shardGroups(ShardGroups shardGroups) {
+        this.shardGroups = shardGroups;
+        return this;
+    }
+
+    DumpFile dump() {
+        return dump;
+    }
+
+    /**
+     * The file where the documents are appended instead of indexing them.
+     * Null to index them.
+     */
+    public ReIndexJob dumpFile(File file) {
+        this.dump = file == null ? null : new DumpFile(file);
+        return this;
+    }
+
+    /**
+     * Null if the reindex cannot be resumed
+     */
+    public String checkpoint() {
+        return checkpoint;
+    }
+
+    public long checkpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * Reads the documents sorted and stores the position every intervalMillis
+     * under the specified name. A later job with the same name continues
+     * from the stored position.
+     */
+    public ReIndexJob checkpoint(String name, long intervalMillis) {
+        this.checkpoint = name;
+        this.checkpointIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Null if the documents are indexed unchanged
+     */
+    public ReIndexTransform transform() {
+        return transform;
+    }
+
+    /**
+     * Changes every document before it is indexed. The transform runs in the
+     * bulk threads.
+     */
+    public ReIndexJob transform(ReIndexTransform transform) {
+        this.transform = transform;
+        return this;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state != State.RUNNING;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the job after the current pages. Returns false if the job was
+     * already done.
+     */
+    public boolean cancel() {
+        if (isDone())
+            return false;
+        cancelled = true;
+        // a throttled scroll would wait for its tokens before it sees the cancel
+        docsLimit.cancel();
+        bytesLimit.cancel();
+        return true;
+    }
+
+    void finished() {
+        done(cancelled ? State.CANCELLED : State.FINISHED);
+    }
+
+    void failed(Throwable ex) {
+        error = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+        done(State.FAILED);
+    }
+
+    private void done(State newState) {
+        endTime = System.currentTimeMillis();
+        state = newState;
+        done.countDown();
+    }
+
+    /**
+     * Waits until the job is finished, failed or cancelled.
+     */
+    public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public long tookMillis() {
+        long end = endTime < 0 ? System.currentTimeMillis() : endTime;
+        return Math.max(1, end - startTime);
+    }
+
+    public float docsPerSecond() {
+        return progress.collected() * 1000f / tookMillis();
+    }
+
+    /**
+     * The estimated remaining time in seconds or -1 if unknown
+     */
+    public long etaSeconds() {
+        if (isDone())
+            return 0;
+        float docsPerSecond = docsPerSecond();
+        if (docsPerSecond <= 0)
+            return -1;
+        return Math.max(0, Math.round((progress.total() - progress.collected()) / docsPerSecond));
+    }
+
+    @Override public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("id", id);
+        builder.field("description", description);
+        builder.field("state", state.name().toLowerCase(Locale.ROOT));
+        builder.field("total", progress.total());
+        builder.field("collected", progress.collected());
+        builder.field("failed", progress.failed());
+        builder.field("bytes", progress.bytes());
+        builder.field("retried", progress.retried());
+        builder.field("version_conflicts", progress.versionConflicts());
+        if (digests != null)
+            builder.field("skipped", progress.skipped());
+        if (deadLetters != null && deadLetters.count() > 0)
+            builder.field("dead_letter_file", deadLetters.file().getAbsolutePath());
+        if (dump != null) {
+            builder.field("dump_file", dump.file().getAbsolutePath());
+            builder.field("dump_bytes", dump.bytes());
+        }
+        float keySpaceProgress = keySpaceProgress();
+        if (keySpaceProgress >= 0)
+            builder.field("key_space_percent", keySpaceProgress * 100);
+        builder.field("docs_per_second", docsPerSecond());
+        if (maxDocsPerSec() > 0)
+            builder.field("max_docs_per_sec", maxDocsPerSec());
+        if (maxBytesPerSec() > 0)
+            builder.field("max_bytes_per_sec", maxBytesPerSec());
+        builder.field("eta_seconds", etaSeconds());
+        builder.field("took_millis", tookMillis());
+        if (error != null)
+            builder.field("error", error);
+        builder.field("metrics");
+        metrics.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override public String toString() {
+        return id + " " + description + " " + state + " " + progress;
+    }
+}
@@ -0,0 +1,98 @@
+package com.pannous.es.reindex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Singleton;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Keeps track of the running and the recently finished reindex jobs of this
+ * node and runs the async jobs in a dedicated executor.
+ *
+ * @author Peter Karich
+ */
+@Singleton
+public class ReIndexJobs extends AbstractComponent {
+
+    private final Map<String, ReIndexJob> jobs = new LinkedHashMap<String, ReIndexJob>();
+    private final ExecutorService executor;
+    private final int keepFinished;
+
+    @Inject public ReIndexJobs(Settings settings) {
+        super(settings);
+        keepFinished = settings.getAsInt("reindex.jobs.keep_finished", 100);
+        executor = Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory(settings, "reindex_job"));
+    }
+
+    public synchronized ReIndexJob get(String id) {
+        return jobs.get(id);
+    }
+
+    public synchronized List<ReIndexJob> jobs() {
+        return new ArrayList<ReIndexJob>(jobs.values());
+    }
+
+    public synchronized ReIndexJob remove(String id) {
+        return jobs.remove(id);
+    }
+
+    private synchronized void register(ReIndexJob job) {
+        int finished = 0;
+        for (ReIndexJob j : jobs.values()) {
+            if (j.isDone())
+                finished++;
+        }
+        // forget the oldest finished jobs
+        Iterator<ReIndexJob> iter = jobs.values().iterator();
+        while (finished >= keepFinished && iter.hasNext()) {
+            if (iter.next().isDone()) {
+                iter.remove();
+                finished--;
+            }
+        }
+        jobs.put(job.id(), job);
+    }
+
+    /**
+     * Registers the job and runs the task in the calling thread.
+     */
+    public void run(ReIndexJob job, Runnable task) {
+        register(job);
+        try {
+            task.run();
+            job.finished();
+        } catch (RuntimeException ex) {
+            job.failed(ex);
+            throw ex;
+        } catch (Error ex) {
+            job.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Registers the job and runs the task in the background.
+     */
+    public void execute(final ReIndexJob job, final Runnable task) {
+        register(job);
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    task.run();
+                    job.finished();
+                } catch (Throwable ex) {
+                    logger.error("reindex job {} failed", ex, job.id());
+                    job.failed(ex);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+import static org.elasticsearch.rest.RestRequest.Method.*;
+import static org.elasticsearch.rest.RestStatus.*;
+
+/**
+ * Lists the reindex jobs, shows the progress of one job and cancels a running
+ * job (or removes a finished one) via DELETE. _throttle changes the rate
+ * limits of a running job. The stats show the metrics of
+ * the running jobs together with the bulk and search thread pools of the
+ * nodes.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexJobsAction extends BaseRestHandler {
+
+    private final ReIndexJobs jobs;
+
+    @Inject public ReIndexJobsAction(Settings settings, Client client, RestController controller, ReIndexJobs jobs) {
+        super(settings, controller, client);
+        this.jobs = jobs;
+
+        controller.registerHandler(GET, "/_reindex/jobs", this);
+        controller.registerHandler(GET, "/_reindex/jobs/{id}", this);
+        controller.registerHandler(DELETE, "/_reindex/jobs/{id}", this);
+        controller.registerHandler(POST, "/_reindex/jobs/{id}/_throttle", this);
+        controller.registerHandler(PUT, "/_reindex/jobs/{id}/_throttle", this);
+        controller.registerHandler(GET, "/_reindex/stats", this);
+    }
+
+    @Override public void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String id = request.param("id");
+        XContentBuilder builder = channel.newBuilder();
+        if (request.path().endsWith("/_reindex/stats")) {
+            writeStats(builder, request, client);
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+            return;
+        }
+        if (id == null) {
+            builder.startObject().startArray("jobs");
+            for (ReIndexJob job : jobs.jobs()) {
+                job.toXContent(builder, request);
+            }
+            builder.endArray().endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+            return;
+        }
+
+        ReIndexJob job = jobs.get(id);
+        if (job == null) {
+            channel.sendResponse(new BytesRestResponse(NOT_FOUND, "reindex job " + id + " not found"));
+            return;
+        }
+        if (request.path().endsWith("/_throttle")) {
+            throttle(job, request);
+            logger.info("changed limits of reindex job " + id + " to " + job.maxDocsPerSec() + " docs/s and "
+                    + job.maxBytesPerSec() + " bytes/s");
+        } else if (request.method() == DELETE) {
+            if (job.cancel())
+                logger.info("cancelled reindex job {}", id);
+            else
+                jobs.remove(id);
+        }
+        job.toXContent(builder, request);
+        channel.sendResponse(new BytesRestResponse(OK, builder));
+    }
+
+    /**
+     * Changes the limits of the job which are specified in the request
+     */
+    static void throttle(ReIndexJob job, RestRequest request) {
+        if (request.hasParam("maxDocsPerSec"))
+            job.maxDocsPerSec(request.paramAsFloat("maxDocsPerSec", 0));
+        if (request.hasParam("maxBytesPerSec"))
+            job.maxBytesPerSec(request.paramAsSize("maxBytesPerSec", new ByteSizeValue(0)).bytes());
+    }
+
+    void writeStats(XContentBuilder builder, ToXContent.Params params, Client client) throws IOException {
+        builder.startObject().startArray("jobs");
+        for (ReIndexJob job : jobs.jobs()) {
+            if (!job.isDone())
+                job.toXContent(builder, params);
+        }
+        builder.endArray();
+
+        NodesStatsResponse rsp = client.admin().cluster().prepareNodesStats().clear().setThreadPool(true).
+                execute().actionGet();
+        builder.startObject("nodes");
+        for (NodeStats node : rsp.getNodes()) {
+            builder.startObject(node.getNode().name());
+            for (ThreadPoolStats.Stats pool : node.getThreadPool()) {
+                if (!ThreadPool.Names.BULK.equals(pool.getName()) && !ThreadPool.Names.SEARCH.equals(pool.getName()))
+                    continue;
+                builder.startObject(pool.getName()).
+                        field("threads", pool.getThreads()).
+                        field("active", pool.getActive()).
+                        field("queue", pool.getQueue()).
+                        field("rejected", pool.getRejected()).
+                        endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject().endObject();
+    }
+}
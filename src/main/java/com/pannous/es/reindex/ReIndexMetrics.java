@@ -0,0 +1,168 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * The throughput and latencies of one reindex job: documents and bytes per
+ * second over the last 10 and 60 seconds, the latencies of the scroll pages
+ * and of the bulk requests, the rejections of the target cluster and how many
+ * bulk requests are queued or in flight. Thread safe.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexMetrics implements ToXContent {
+
+    private final SlidingRate docs = new SlidingRate();
+    private final SlidingRate bytes = new SlidingRate();
+    private final LatencyHistogram scrollLatency = new LatencyHistogram();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+    private final AtomicLong rejectedBulks = new AtomicLong();
+    private final AtomicLong rejectedDocs = new AtomicLong();
+    private final AtomicInteger queuedBulks = new AtomicInteger();
+    private final AtomicInteger activeBulks = new AtomicInteger();
+
+    /**
+     * Called after a scroll page with the specified documents was fetched
+     */
+    public void onScroll(long millis, long docCount, long byteCount) {
+        long now = System.currentTimeMillis();
+        scrollLatency.add(millis);
+        docs.add(docCount, now);
+        bytes.add(byteCount, now);
+    }
+
+    /**
+     * Called after a bulk request returned
+     *
+     * @param rejected the number of documents the target cluster rejected
+     */
+    public void onBulk(long millis, int rejected) {
+        bulkLatency.add(millis);
+        rejectedDocs.addAndGet(rejected);
+    }
+
+    /**
+     * Called if the target cluster rejected a whole bulk request
+     */
+    public void onRejectedBulk() {
+        rejectedBulks.incrementAndGet();
+    }
+
+    void bulkQueued() {
+        queuedBulks.incrementAndGet();
+    }
+
+    void bulkDequeued() {
+        queuedBulks.decrementAndGet();
+    }
+
+    void bulkStarted() {
+        activeBulks.incrementAndGet();
+    }
+
+    void bulkFinished() {
+        activeBulks.decrementAndGet();
+    }
+
+    public LatencyHistogram scrollLatency() {
+        return scrollLatency;
+    }
+
+    public LatencyHistogram bulkLatency() {
+        return bulkLatency;
+    }
+
+    public long rejectedBulks() {
+        return rejectedBulks.get();
+    }
+
+    public long rejectedDocs() {
+        return rejectedDocs.get();
+    }
+
+    /**
+     * The bulk requests which wait for a bulk thread
+     */
+    public int queuedBulks() {
+        return queuedBulks.get();
+    }
+
+    /**
+     * The bulk requests which are sent and wait for the response
+     */
+    public int activeBulks() {
+        return activeBulks.get();
+    }
+
+    /**
+     * The documents per second over the specified last seconds (at most 60)
+     */
+    public float docsPerSecond(int seconds) {
+        return docs.rate(seconds, System.currentTimeMillis());
+    }
+
+    /**
+     * The MB per second over the specified last seconds (at most 60)
+     */
+    public float mbPerSecond(int seconds) {
+        return bytes.rate(seconds, System.currentTimeMillis()) / (1 << 20);
+    }
+
+    @Override public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("docs_per_second_10s", docsPerSecond(10));
+        builder.field("docs_per_second_60s", docsPerSecond(60));
+        builder.field("mb_per_second_10s", mbPerSecond(10));
+        builder.field("mb_per_second_60s", mbPerSecond(60));
+        builder.field("scroll_latency");
+        scrollLatency.toXContent(builder, params);
+        builder.field("bulk_latency");
+        bulkLatency.toXContent(builder, params);
+        builder.field("rejected_bulks", rejectedBulks());
+        builder.field("rejected_docs", rejectedDocs());
+        builder.field("queued_bulks", queuedBulks());
+        builder.field("active_bulks", activeBulks());
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Sums the counts of the last 60 seconds in one bucket per second
+     */
+    static class SlidingRate {
+
+        private static final int SECONDS = 61;
+        private final long[] counts = new long[SECONDS];
+        private final long[] epochSeconds = new long[SECONDS];
+
+        synchronized void add(long count, long nowMillis) {
+            long second = nowMillis / 1000;
+            int index = (int) (second % SECONDS);
+            if (epochSeconds[index] != second) {
+                epochSeconds[index] = second;
+                counts[index] = 0;
+            }
+            counts[index] += count;
+        }
+
+        /**
+         * Returns the count per second of the last seconds without the
+         * current, incomplete second
+         */
+        synchronized float rate(int seconds, long nowMillis) {
+            seconds = Math.max(1, Math.min(SECONDS - 1, seconds));
+            long current = nowMillis / 1000;
+            long sum = 0;
+            for (int i = 0; i < SECONDS; i++) {
+                long age = current - epochSeconds[i];
+                if (age >= 1 && age <= seconds)
+                    sum += counts[i];
+            }
+            return (float) sum / seconds;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.pannous.es.reindex;
 
+import java.util.Collection;
+import java.util.Collections;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
@@ -21,10 +24,16 @@ public class ReIndexPlugin extends AbstractPlugin {
         return "ReIndex Plugin";
     }
 
+    @Override public Collection<Class<? extends LifecycleComponent>> services() {
+        // closes the pooled connections to remote clusters on shutdown
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(ReIndexHttpClient.class);
+    }
+
     @Override public void processModule(Module module) {
         if (module instanceof RestModule) {
             ((RestModule) module).addRestAction(ReIndexAction.class);
             ((RestModule) module).addRestAction(ReIndexWithCreate.class);
+            ((RestModule) module).addRestAction(ReIndexJobsAction.class);
             // logger.info("NOW " + action.getFeed("test"));
         }
     }
@@ -0,0 +1,92 @@
+package com.pannous.es.reindex;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the documents of a reindex. Thread safe so that several scroll slices
+ * and bulk threads can add into the same totals.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexProgress {
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong versionConflicts = new AtomicLong();
+
+    public void addTotal(long count) {
+        total.addAndGet(count);
+    }
+
+    public void addCollected(long count) {
+        collected.addAndGet(count);
+    }
+
+    public void addFailed(long count) {
+        failed.addAndGet(count);
+    }
+
+    public void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    public void addRetried(long count) {
+        retried.addAndGet(count);
+    }
+
+    public void addSkipped(long count) {
+        skipped.addAndGet(count);
+    }
+
+    public void addVersionConflicts(long count) {
+        versionConflicts.addAndGet(count);
+    }
+
+    public long total() {
+        return total.get();
+    }
+
+    public long collected() {
+        return collected.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * The number of documents which were scheduled to be sent again
+     */
+    public long retried() {
+        return retried.get();
+    }
+
+    /**
+     * The number of documents which were not sent as they are unchanged
+     */
+    public long skipped() {
+        return skipped.get();
+    }
+
+    /**
+     * The number of documents which the target rejected as it has a newer
+     * version or, for op_type create, the document already. Not counted as
+     * failed.
+     */
+    public long versionConflicts() {
+        return versionConflicts.get();
+    }
+
+    @Override public String toString() {
+        return "found " + total() + ", collected:" + collected()
+                + ", transfered:" + (float) bytes() / (1 << 20) + "MB";
+    }
+}
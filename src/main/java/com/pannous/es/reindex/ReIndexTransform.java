@@ -0,0 +1,232 @@
+package com.pannous.es.reindex;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.ScriptService;
+
+/**
+ * Changes the documents before they are indexed. The target index can be
+ * computed from the original source with an index template. Fields are
+ * renamed, removed or set while the source is copied token by token - values
+ * of untouched fields are never parsed into objects. A script gets the whole
+ * document as ctx._source (after the other changes) and can change
+ * ctx._index, ctx._type, ctx._id or skip the document with ctx.op = "none".
+ *
+ * Field paths are separated by dots, e.g. user.name. Thread safe.
+ *
+ * @author Peter Karich
+ */
+public class ReIndexTransform {
+
+    private final Map<String, String> renames = new HashMap<String, String>();
+    private final Set<String> removes = new HashSet<String>();
+    private final Map<String, String> sets = new LinkedHashMap<String, String>();
+    // the paths of all objects which contain a changed field
+    private final Set<String> parents = new HashSet<String>();
+    private IndexNameTemplate indexTemplate;
+    private ScriptService scriptService;
+    private CompiledScript script;
+
+    /**
+     * Returns the transform of the indexTemplate, rename, remove, set and
+     * script parameters or null if the request has none of them
+     */
+    public static ReIndexTransform parse(RestRequest request, ScriptService scriptService) {
+        ReIndexTransform transform = new ReIndexTransform();
+        String indexTemplate = request.param("indexTemplate");
+        if (indexTemplate != null)
+            transform.indexTemplate(new IndexNameTemplate(indexTemplate));
+        for (String rename : Strings.commaDelimitedListToStringArray(request.param("rename"))) {
+            String[] pair = splitPair(rename, "rename");
+            transform.rename(pair[0], pair[1]);
+        }
+        for (String remove : Strings.commaDelimitedListToStringArray(request.param("remove"))) {
+            transform.remove(remove.trim());
+        }
+        for (String set : Strings.commaDelimitedListToStringArray(request.param("set"))) {
+            String[] pair = splitPair(set, "set");
+            transform.set(pair[0], pair[1]);
+        }
+        String script = request.param("script");
+        if (script != null) {
+            if (scriptService == null)
+                throw new IllegalArgumentException("scripts are not available");
+            transform.script(scriptService, request.param("scriptLang"), script);
+        }
+        return transform.isEmpty() ? null : transform;
+    }
+
+    private static String[] splitPair(String str, String param) {
+        int index = str.indexOf(':');
+        if (index <= 0)
+            throw new IllegalArgumentException(param + " expects field:value but was " + str);
+        return new String[]{str.substring(0, index).trim(), str.substring(index + 1).trim()};
+    }
+
+    /**
+     * Writes every document into the index computed by the template. The
+     * documents where a field of the template is missing stay in the index of
+     * the reindex.
+     */
+    public ReIndexTransform indexTemplate(IndexNameTemplate indexTemplate) {
+        this.indexTemplate = indexTemplate;
+        return this;
+    }
+
+    /**
+     * Renames the field at the specified path to newName in the same object
+     */
+    public ReIndexTransform rename(String path, String newName) {
+        renames.put(path, newName);
+        addParents(path);
+        return this;
+    }
+
+    public ReIndexTransform remove(String path) {
+        removes.add(path);
+        addParents(path);
+        return this;
+    }
+
+    /**
+     * Sets the field to the specified string. The field is added if its
+     * parent object exists.
+     */
+    public ReIndexTransform set(String path, String value) {
+        sets.put(path, value);
+        addParents(path);
+        return this;
+    }
+
+    /**
+     * @param lang null for the default script language of the node
+     */
+    public ReIndexTransform script(ScriptService scriptService, String lang, String script) {
+        this.scriptService = scriptService;
+        this.script = lang == null ? scriptService.compile(script) : scriptService.compile(lang, script);
+        return this;
+    }
+
+    private void addParents(String path) {
+        parents.add("");
+        for (int index = path.indexOf('.'); index > 0; index = path.indexOf('.', index + 1)) {
+            parents.add(path.substring(0, index + 1));
+        }
+    }
+
+    public boolean isEmpty() {
+        return indexTemplate == null && parents.isEmpty() && script == null;
+    }
+
+    /**
+     * Returns the changed document or null if the script skipped it
+     */
+    public Doc apply(String index, String type, String id, BytesReference source) throws IOException {
+        Doc doc = new Doc(index, type, id, source);
+        if (indexTemplate != null) {
+            String target = indexTemplate.resolve(source);
+            if (target != null)
+                doc.index = target;
+        }
+        if (!parents.isEmpty())
+            doc.source = copy(source);
+        if (script != null && !runScript(doc))
+            return null;
+        return doc;
+    }
+
+    private BytesReference copy(BytesReference source) throws IOException {
+        XContentParser parser = XContentHelper.createParser(source);
+        try {
+            XContentBuilder builder = XContentFactory.contentBuilder(parser.contentType());
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT)
+                throw new IOException("source is not an object");
+            builder.startObject();
+            copyObject(parser, builder, "");
+            builder.endObject();
+            return builder.bytes();
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void copyObject(XContentParser parser, XContentBuilder builder, String prefix) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            String name = parser.currentName();
+            String path = prefix + name;
+            token = parser.nextToken();
+            if (removes.contains(path) || sets.containsKey(path)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String newName = renames.get(path);
+            builder.field(newName == null ? name : newName);
+            if (token == XContentParser.Token.START_OBJECT && parents.contains(path + ".")) {
+                builder.startObject();
+                copyObject(parser, builder, path + ".");
+                builder.endObject();
+            } else {
+                builder.copyCurrentStructure(parser);
+            }
+        }
+
+        for (Map.Entry<String, String> e : sets.entrySet()) {
+            String path = e.getKey();
+            if (path.startsWith(prefix) && path.indexOf('.', prefix.length()) < 0)
+                builder.field(path.substring(prefix.length()), e.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean runScript(Doc doc) throws IOException {
+        Map<String, Object> ctx = new HashMap<String, Object>();
+        ctx.put("_index", doc.index);
+        ctx.put("_type", doc.type);
+        ctx.put("_id", doc.id);
+        ctx.put("op", "index");
+        ctx.put("_source", XContentHelper.convertToMap(doc.source, true).v2());
+
+        ExecutableScript executable = scriptService.executable(script, new HashMap<String, Object>());
+        executable.setNextVar("ctx", ctx);
+        executable.run();
+        ctx = (Map<String, Object>) executable.unwrap(ctx);
+        if (!"index".equals(ctx.get("op")))
+            return false;
+
+        doc.index = (String) ctx.get("_index");
+        doc.type = (String) ctx.get("_type");
+        doc.id = (String) ctx.get("_id");
+        doc.source = XContentFactory.jsonBuilder().map((Map<String, Object>) ctx.get("_source")).bytes();
+        return true;
+    }
+
+    public static class Doc {
+
+        String index;
+        String type;
+        String id;
+        BytesReference source;
+
+        Doc(String index, String type, String id, BytesReference source) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.source = source;
+        }
+    }
+}
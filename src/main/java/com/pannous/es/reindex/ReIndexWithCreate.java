@@ -10,12 +10,15 @@ import org.elasticsearch.action.count.CountRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.hppc.cursors.ObjectCursor;
 import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.rest.*;
+import org.elasticsearch.script.ScriptService;
 
 import java.io.IOException;
 
@@ -30,9 +33,16 @@ import java.util.*;
 public class ReIndexWithCreate extends BaseRestHandler {
 
     private ReIndexAction reindexAction;
+    private final ReIndexJobs jobs;
 
-    @Inject public ReIndexWithCreate(Settings settings, Client client, RestController controller) {
+    public ReIndexWithCreate(Settings settings, Client client, RestController controller) {
+        this(settings, client, controller, new ReIndexJobs(settings), new ReIndexHttpClient(settings), null);
+    }
+
+    @Inject public ReIndexWithCreate(Settings settings, Client client, RestController controller, ReIndexJobs jobs,
+            ReIndexHttpClient httpClient, ScriptService scriptService) {
 	super(settings, controller, client);
+        this.jobs = jobs;
 
 	// Define REST endpoints to do a reindex
 	controller.registerHandler(PUT, "/_reindex", this);
@@ -40,10 +50,10 @@ public class ReIndexWithCreate extends BaseRestHandler {
 
         // give null controller as argument to avoid registering twice
         // which would lead to an assert exception
-        reindexAction = new ReIndexAction(settings, client, null);
+        reindexAction = new ReIndexAction(settings, client, null, jobs, httpClient, scriptService);
     }
 
-    @Override public void handleRequest(RestRequest request, RestChannel channel, Client client) {
+    @Override public void handleRequest(final RestRequest request, RestChannel channel, final Client client) {
         logger.info("ReIndexWithCreate.handleRequest [{}]", request.toString());
         try {
             // required parameters
@@ -52,7 +62,7 @@ public class ReIndexWithCreate extends BaseRestHandler {
                 channel.sendResponse(new BytesRestResponse(RestStatus.EXPECTATION_FAILED, "parameter index missing"));
                 return;
             }
-            String type = request.param("type", "");
+            final String type = request.param("type", "");
             if (type.isEmpty()) {
                 channel.sendResponse(new BytesRestResponse(RestStatus.EXPECTATION_FAILED, "parameter type missing"));
                 return;
@@ -72,12 +82,14 @@ public class ReIndexWithCreate extends BaseRestHandler {
             }
 
             int newShards = request.paramAsInt("newIndexShards", -1);
+            final List<String> searchIndices = ReIndexAction.resolveIndices(searchIndexName, newIndexName, true, client);
             try {
                 if(client.admin().indices().exists(new IndicesExistsRequest(newIndexName)).actionGet().isExists()) {
                     logger.info("target index already exists, skip creation: " + newIndexName);
                 }
                 else {
-                    createIdenticalIndex(searchIndexName, type, newIndexName, newShards, client);
+                    // the first of several search indices is the template for the settings and mappings
+                    createIdenticalIndex(searchIndices.get(0), type, newIndexName, newShards, client);
                 }
             } catch (Exception ex) {
                 String str = "Problem while creating index " + newIndexName + " from " + searchIndexName + " " + ex.getMessage();
@@ -86,47 +98,24 @@ public class ReIndexWithCreate extends BaseRestHandler {
                 return;
             }
 
-            // TODO: what if queries goes to the old index while we reindexed?
-            // now reindex
-        
-            if(type.equals("*")) {
-
-                IndexMetaData indexData = client.admin().cluster().state(new ClusterStateRequest()).
-                        actionGet().getState().metaData().indices().get(searchIndexName);
-                Settings searchIndexSettings = indexData.settings();
-
-                for(ObjectCursor<String> mapKeyCursor : indexData.mappings().keys()) {
-		  if (skipTypeList.contains(mapKeyCursor.value)) {
-		    logger.info("Skip type [{}]", mapKeyCursor.value);
-		    continue;
-		  }
-		  reindexAction.handleRequest(request, channel, mapKeyCursor.value, true, client);
-                }
-            }
-            else {
-                reindexAction.handleRequest(request, channel, type, true, client);
-            }
-
-            boolean delete = request.paramAsBoolean("delete", false);
-            if (delete) {
-            
-                // make sure to refresh the index here
-                // (e.g. the index may be paused or refreshing with a very long interval):
-                logger.info("refreshing " + searchIndexName);
-                client.admin().indices().refresh(new RefreshRequest(newIndexName)).actionGet();
-            
-                long oldCount = client.count(new CountRequest(searchIndexName)).actionGet().getCount();
-                long newCount = client.count(new CountRequest(newIndexName)).actionGet().getCount();
-                if (oldCount == newCount) {
-                    logger.info("deleting " + searchIndexName);
-                    client.admin().indices().delete(new DeleteIndexRequest(searchIndexName)).actionGet();
+            final ReIndexJob job = reindexAction.createJob(request);
+            final List<String> skipTypes = skipTypeList;
+            Runnable task = new Runnable() {
+                @Override public void run() {
+                    try {
+                        reindex(request, job, type, searchIndices, skipTypes, client);
+                    } finally {
+                        reindexAction.finish(job);
+                    }
                 }
+            };
+            if (request.paramAsBoolean("async", false)) {
+                jobs.execute(job, task);
+                ReIndexAction.sendJobResponse(job, channel);
+                return;
             }
 
-            boolean copyAliases = request.paramAsBoolean("copyAliases", false);
-            if (copyAliases)
-                copyAliases(request, client);
-                
+            jobs.run(job, task);
             channel.sendResponse(new BytesRestResponse(OK));
                 
         } catch (Exception ex) { // also catch the RuntimeException thrown by ReIndexAction
@@ -138,6 +127,100 @@ public class ReIndexWithCreate extends BaseRestHandler {
         }
     }
 
+    /**
+     * Reindexes the specified type or all types (except the skipped ones) of
+     * the search indices in the calling thread.
+     */
+    private void reindex(RestRequest request, ReIndexJob job, String type, List<String> searchIndices,
+            List<String> skipTypeList, Client client) {
+        String newIndexName = request.param("index");
+        OptimizedLoad load = null;
+        if (request.paramAsBoolean("optimizeLoad", false))
+            load = OptimizedLoad.start(client, newIndexName, settings);
+        try {
+            reindexTypes(request, job, type, searchIndices, skipTypeList, client);
+            // the retries belong to the new index before it is optimized and counted
+            reindexAction.flushRetries(job, client);
+        } finally {
+            if (load != null)
+                load.restore();
+        }
+
+        if (job.isCancelled())
+            return;
+
+        if (load != null)
+            load.finish(request.paramAsInt("maxNumSegments", 1),
+                    request.paramAsTime("greenTimeout", TimeValue.timeValueMinutes(30)));
+
+        boolean delete = request.paramAsBoolean("delete", false);
+        if (delete) {
+        
+            // make sure to refresh the index here
+            // (e.g. the index may be paused or refreshing with a very long interval):
+            logger.info("refreshing " + newIndexName);
+            client.admin().indices().refresh(new RefreshRequest(newIndexName)).actionGet();
+        
+            String[] oldIndices = searchIndices.toArray(new String[searchIndices.size()]);
+            long oldCount = client.count(new CountRequest(oldIndices)).actionGet().getCount();
+            long newCount = client.count(new CountRequest(newIndexName)).actionGet().getCount();
+            if (oldCount == newCount) {
+                logger.info("deleting " + searchIndices);
+                client.admin().indices().delete(new DeleteIndexRequest(oldIndices)).actionGet();
+            }
+        }
+
+        boolean copyAliases = request.paramAsBoolean("copyAliases", false);
+        if (copyAliases)
+            copyAliases(newIndexName, searchIndices, request.paramAsBoolean("addOldIndexAsAlias", false), client);
+    }
+
+    /**
+     * Reindexes the type or all types of the search index. With typeThreads
+     * several types are copied at the same time and share the bulk threads
+     * of the job as limit for the concurrent bulk requests.
+     */
+    private void reindexTypes(final RestRequest request, final ReIndexJob job, String type, List<String> searchIndices,
+            List<String> skipTypeList, final Client client) {
+        // documents changed while we reindex are copied again in catch-up passes if a timestampField is specified
+        if (!type.equals("*")) {
+            reindexAction.reindex(request, job, type, client);
+            return;
+        }
+
+        MetaData metaData = client.admin().cluster().state(new ClusterStateRequest()).actionGet().getState().metaData();
+        Set<String> types = new LinkedHashSet<String>();
+        for (String index : searchIndices) {
+            for (ObjectCursor<String> mapKeyCursor : metaData.index(index).mappings().keys()) {
+                if (skipTypeList.contains(mapKeyCursor.value)) {
+                    logger.info("Skip type [{}]", mapKeyCursor.value);
+                    continue;
+                }
+                types.add(mapKeyCursor.value);
+            }
+        }
+
+        int typeThreads = Math.min(request.paramAsInt("typeThreads", 1), types.size());
+        if (typeThreads <= 1) {
+            for (String t : types) {
+                if (job.isCancelled())
+                    return;
+                reindexAction.reindex(request, job, t, client);
+            }
+            return;
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>(types.size());
+        for (final String t : types) {
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    reindexAction.reindex(request, job, t, client);
+                }
+            });
+        }
+        reindexAction.runInParallel(job, tasks, typeThreads, "reindex_type");
+    }
+
     /**
      * Creates a new index out of the settings from the old index.
      */
@@ -169,16 +252,13 @@ public class ReIndexWithCreate extends BaseRestHandler {
         client.admin().indices().create(createReq).actionGet();
     }
 
-    private void copyAliases(RestRequest request, Client client) {
-        String index = request.param("index");
-        String searchIndexName = request.param("searchIndex");
-        boolean aliasIncludeIndex = request.paramAsBoolean("addOldIndexAsAlias", false);
-        copyAliases(index, searchIndexName, aliasIncludeIndex, client);
-    }
-
-    private void copyAliases(String index, String searchIndexName, Boolean aliasIncludeIndex, Client client) {
+    /**
+     * Copies the aliases of the first search index to the new index and, if
+     * requested, adds the names of the deleted search indices as alias.
+     */
+    private void copyAliases(String index, List<String> searchIndices, Boolean aliasIncludeIndex, Client client) {
         IndexMetaData meta = client.admin().cluster().state(new ClusterStateRequest()).
-                actionGet().getState().metaData().index(searchIndexName);
+                actionGet().getState().metaData().index(searchIndices.get(0));
         IndicesAliasesRequest aReq = new IndicesAliasesRequest();
         boolean empty = true;
         if(meta != null && meta.aliases() != null) {
@@ -188,13 +268,15 @@ public class ReIndexWithCreate extends BaseRestHandler {
             }
         }
         if (aliasIncludeIndex) {
-            if (client.admin().indices().exists(new IndicesExistsRequest(searchIndexName)).actionGet().isExists()) {
-                logger.warn("Cannot add old index name (" + searchIndexName + ") as alias to index "
-                        + index + " - as old index still exists");
-            }
-            else {
-                aReq.addAlias(searchIndexName, index);
-                empty = false;
+            for (String searchIndexName : searchIndices) {
+                if (client.admin().indices().exists(new IndicesExistsRequest(searchIndexName)).actionGet().isExists()) {
+                    logger.warn("Cannot add old index name (" + searchIndexName + ") as alias to index "
+                            + index + " - as old index still exists");
+                }
+                else {
+                    aReq.addAlias(searchIndexName, index);
+                    empty = false;
+                }
             }
         }
         if(!empty) //!aReq.aliasActions().isEmpty())
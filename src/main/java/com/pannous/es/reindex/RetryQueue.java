@@ -0,0 +1,153 @@
+package com.pannous.es.reindex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Holds the documents which failed with a temporary problem (rejected, timeout
+ * or unavailable shard) until they are due to be sent again. The delay doubles
+ * with every attempt. The owner of a document, e.g. the checkpoint batch it
+ * was read in, is told when the document waits for a retry and when it is
+ * indexed or failed permanently.
+ *
+ * @author Peter Karich
+ */
+class RetryQueue {
+
+    static final long MAX_BACKOFF_MILLIS = 60000;
+    private final DelayQueue<Retry> queue = new DelayQueue<Retry>();
+    private final int maxRetries;
+    private final long backoffMillis;
+
+    RetryQueue(int maxRetries, long backoffMillis) {
+        this.maxRetries = maxRetries;
+        this.backoffMillis = Math.max(1, backoffMillis);
+    }
+
+    /**
+     * Returns true if a document which failed with the specified status could
+     * succeed if it is sent again. False e.g. for mapping errors.
+     */
+    static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS
+                || status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.REQUEST_TIMEOUT
+                || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+
+    boolean offer(IndexRequest request, int attempts, RestStatus status) {
+        return offer(request, attempts, status, null);
+    }
+
+    /**
+     * Schedules the request to be sent again. Returns false if the failure is
+     * permanent or if the request was already sent too often.
+     *
+     * @param attempts how often the request was already retried
+     * @param owner is told when the retry is resolved or null
+     */
+    boolean offer(IndexRequest request, int attempts, RestStatus status, Owner owner) {
+        if (attempts >= maxRetries || !isRetryable(status))
+            return false;
+
+        long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis(attempts));
+        queue.add(new Retry(request, attempts + 1, dueNanos, owner));
+        return true;
+    }
+
+    int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Returns the delay before the next attempt of something which was
+     * already retried the specified number of times
+     */
+    long backoffMillis(int attempts) {
+        return Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(attempts, 20));
+    }
+
+    /**
+     * Removes at most max retries which are due without waiting
+     */
+    List<Retry> pollDue(int max) {
+        List<Retry> list = new ArrayList<Retry>();
+        queue.drainTo(list, max);
+        return list;
+    }
+
+    /**
+     * Waits at most the specified time until the next retry is due, returns
+     * null if none is due until then
+     */
+    Retry poll(long timeoutMillis) throws InterruptedException {
+        return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes all retries, also the ones which are not due yet
+     */
+    List<Retry> clear() {
+        List<Retry> list = new ArrayList<Retry>();
+        for (Iterator<Retry> iter = queue.iterator(); iter.hasNext();) {
+            list.add(iter.next());
+            iter.remove();
+        }
+        return list;
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Waits for the documents it owns which failed temporarily
+     */
+    interface Owner {
+
+        /**
+         * A document failed for the first time and waits for a retry
+         */
+        void retryQueued();
+
+        /**
+         * A document which waited for a retry is indexed or failed
+         * permanently
+         */
+        void retryResolved();
+    }
+
+    static class Retry implements Delayed {
+
+        final IndexRequest request;
+        final int attempts;
+        final Owner owner;
+        private final long dueNanos;
+
+        Retry(IndexRequest request, int attempts, long dueNanos, Owner owner) {
+            this.request = request;
+            this.attempts = attempts;
+            this.dueNanos = dueNanos;
+            this.owner = owner;
+        }
+
+        @Override public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
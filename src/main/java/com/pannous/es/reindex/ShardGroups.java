@@ -0,0 +1,181 @@
+package com.pannous.es.reindex;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.operation.hash.HashFunction;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Splits the documents of a bulk by the primary shard of the target index, or
+ * by the node of this shard, so that every group is sent as its own bulk
+ * request and a slow shard delays only its own documents. The shard is
+ * computed like the operation routing of the node: the hash of the routing or
+ * the id modulo the number of shards. An alias of a single index is resolved
+ * to this index and to the index routing of the alias. Every group has its
+ * own limit of bulk requests in flight. The cluster state is read again every
+ * 10 seconds and if a target is neither an index nor an alias, e.g. before it
+ * was auto created. Thread safe.
+ *
+ * @author Peter Karich
+ */
+class ShardGroups {
+
+    enum By {
+
+        SHARD, NODE;
+
+        static By fromString(String value) {
+            try {
+                return By.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("groupBulksBy has to be shard or node but was " + value);
+            }
+        }
+    }
+
+    /**
+     * The group of the documents whose shard is unknown
+     */
+    static final String UNKNOWN = "_unknown";
+    private static final long STATE_MAX_AGE_MILLIS = 10000;
+    private final By by;
+    private final int bulksPerGroup;
+    private final HashFunction hashFunction;
+    private final boolean useType;
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+    private ClusterState state;
+    private long stateMillis;
+
+    ShardGroups(Settings settings, By by, int bulksPerGroup) {
+        if (bulksPerGroup < 1)
+            throw new IllegalArgumentException("bulksPerGroup has to be positive but was " + bulksPerGroup);
+        this.by = by;
+        this.bulksPerGroup = bulksPerGroup;
+        // the same settings as the operation routing of the node
+        Class<? extends HashFunction> hashClass = settings.getAsClass("cluster.routing.operation.hash.type",
+                DjbHashFunction.class, "org.elasticsearch.cluster.routing.operation.hash.", "HashFunction");
+        try {
+            this.hashFunction = hashClass.newInstance();
+        } catch (Exception ex) {
+            throw new RuntimeException("Cannot create hash function " + hashClass, ex);
+        }
+        this.useType = settings.getAsBoolean("cluster.routing.operation.use_type", false);
+    }
+
+    By by() {
+        return by;
+    }
+
+    int bulksPerGroup() {
+        return bulksPerGroup;
+    }
+
+    /**
+     * Returns the documents per group, in the order of the first document of
+     * every group
+     */
+    Map<String, List<IndexRequest>> group(List<IndexRequest> requests, Client client) {
+        ClusterState current = state(requests, client);
+        Map<String, List<IndexRequest>> groups = new LinkedHashMap<String, List<IndexRequest>>();
+        for (IndexRequest request : requests) {
+            String key = key(current, request);
+            List<IndexRequest> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<IndexRequest>();
+                groups.put(key, group);
+            }
+            group.add(request);
+        }
+        return groups;
+    }
+
+    /**
+     * The limit of the bulk requests in flight of the specified group
+     */
+    Semaphore permits(String key) {
+        Semaphore semaphore = permits.get(key);
+        if (semaphore == null) {
+            Semaphore created = new Semaphore(bulksPerGroup);
+            semaphore = permits.putIfAbsent(key, created);
+            if (semaphore == null)
+                semaphore = created;
+        }
+        return semaphore;
+    }
+
+    private synchronized ClusterState state(List<IndexRequest> requests, Client client) {
+        long now = System.currentTimeMillis();
+        boolean refresh = state == null || now - stateMillis > STATE_MAX_AGE_MILLIS;
+        for (int i = 0; !refresh && i < requests.size(); i++) {
+            // at most once per second for an index which does not exist yet
+            String name = requests.get(i).index();
+            refresh = state.metaData().index(name) == null && !state.metaData().aliases().containsKey(name)
+                    && now - stateMillis > 1000;
+        }
+        if (refresh) {
+            state = client.admin().cluster().prepareState().execute().actionGet().getState();
+            stateMillis = now;
+        }
+        return state;
+    }
+
+    String key(ClusterState state, IndexRequest request) {
+        MetaData metaData = state.metaData();
+        String index = request.index();
+        IndexMetaData meta = metaData.index(index);
+        if (meta == null) {
+            // like the node an alias of several indices is not resolved
+            ImmutableOpenMap<String, AliasMetaData> indices = metaData.aliases().get(index);
+            if (indices == null || indices.size() != 1)
+                return UNKNOWN;
+            index = indices.keysIt().next();
+            meta = metaData.index(index);
+        }
+        if (meta == null || meta.numberOfShards() < 1)
+            return UNKNOWN;
+        String routing;
+        try {
+            routing = metaData.resolveIndexRouting(request.routing(), request.index());
+        } catch (ElasticsearchIllegalArgumentException ex) {
+            // e.g. an alias with several routing values, the bulk request fails
+            return UNKNOWN;
+        }
+        int shard = shardId(routing, request, meta.numberOfShards());
+        if (by == By.SHARD)
+            return index + "/" + shard;
+
+        IndexRoutingTable routingTable = state.routingTable().index(index);
+        ShardRouting primary = routingTable == null ? null : routingTable.shard(shard).primaryShard();
+        if (primary == null || primary.currentNodeId() == null)
+            return UNKNOWN;
+        return primary.currentNodeId();
+    }
+
+    int shardId(String routing, IndexRequest request, int shards) {
+        int hash;
+        if (routing != null)
+            hash = hashFunction.hash(routing);
+        else if (useType)
+            hash = hashFunction.hash(request.type(), request.id());
+        else
+            hash = hashFunction.hash(request.id());
+        return Math.abs(hash % shards);
+    }
+}
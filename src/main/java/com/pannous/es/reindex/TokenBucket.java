@@ -0,0 +1,72 @@
+package com.pannous.es.reindex;
+
+/**
+ * Limits a rate like documents or bytes per second. The bucket holds the
+ * tokens of at most one second and is refilled continuously. A caller takes
+ * its tokens up front and waits while the bucket is in debt, so a request
+ * which is larger than one second of tokens slows down the following ones.
+ * The rate can be changed while callers wait, a rate of 0 is unlimited. A
+ * cancelled bucket lets all callers pass. Thread safe.
+ *
+ * @author Peter Karich
+ */
+class TokenBucket {
+
+    private static final long MAX_WAIT_MILLIS = 100;
+    private double ratePerSecond;
+    private double available;
+    private long lastNanos = System.nanoTime();
+    private boolean cancelled;
+
+    TokenBucket(double ratePerSecond) {
+        rate(ratePerSecond);
+    }
+
+    synchronized double rate() {
+        return ratePerSecond;
+    }
+
+    /**
+     * Changes the rate, waiting callers continue with the new rate
+     */
+    synchronized void rate(double ratePerSecond) {
+        if (ratePerSecond < 0)
+            throw new IllegalArgumentException("rate cannot be negative but was " + ratePerSecond);
+        refill();
+        // a new limit starts with a full bucket, a changed limit keeps the debt
+        available = this.ratePerSecond <= 0 ? ratePerSecond : Math.min(available, ratePerSecond);
+        this.ratePerSecond = ratePerSecond;
+        notifyAll();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(ratePerSecond, available + (now - lastNanos) * ratePerSecond / 1e9);
+        lastNanos = now;
+    }
+
+    /**
+     * Wakes up the waiting callers and lets them and all further callers pass
+     * without waiting, e.g. if the job was cancelled
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Takes the specified tokens and waits until the bucket is no longer in
+     * debt or cancelled
+     */
+    synchronized void acquire(long tokens) throws InterruptedException {
+        if (cancelled || ratePerSecond <= 0 || tokens <= 0)
+            return;
+        refill();
+        available -= tokens;
+        while (!cancelled && ratePerSecond > 0 && available < 0) {
+            long waitMillis = (long) Math.ceil(-available * 1000 / ratePerSecond);
+            wait(Math.max(1, Math.min(MAX_WAIT_MILLIS, waitMillis)));
+            refill();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.pannous.es.reindex;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AdaptiveBulkSizeTest {
+
+    @Test public void growWhileFast() {
+        AdaptiveBulkSize size = new AdaptiveBulkSize(1000, 10, 1000, 100 << 20);
+        int docs = size.bulkDocs();
+        size.onBulk(100, 0);
+        assertThat(size.bulkDocs(), greaterThan(docs));
+        for (int i = 0; i < 100; i++) {
+            size.onBulk(100, 0);
+        }
+        assertThat(size.bulkDocs(), equalTo(1000));
+        assertThat(size.bulkBytes(), equalTo(100L << 20));
+        assertThat(size.delayMillis(), equalTo(0L));
+    }
+
+    @Test public void shrinkWhileSlow() {
+        AdaptiveBulkSize size = new AdaptiveBulkSize(1000, 10, 1000, 100 << 20);
+        int docs = size.bulkDocs();
+        size.onBulk(1000, 0);
+        assertThat(size.bulkDocs(), equalTo(docs));
+        size.onBulk(5000, 0);
+        assertThat(size.bulkDocs(), lessThan(docs));
+        assertThat(size.delayMillis(), equalTo(0L));
+    }
+
+    @Test public void backOffIfRejected() {
+        AdaptiveBulkSize size = new AdaptiveBulkSize(1000, 10, 1000, 100 << 20);
+        int docs = size.bulkDocs();
+        size.onBulk(100, 3);
+        assertThat(size.bulkDocs(), equalTo(docs / 2));
+        assertThat(size.delayMillis(), equalTo(100L));
+        size.onRejected();
+        assertThat(size.delayMillis(), equalTo(200L));
+        assertThat(size.rejections(), equalTo(2L));
+        for (int i = 0; i < 100; i++) {
+            size.onRejected();
+        }
+        assertThat(size.bulkDocs(), equalTo(10));
+        assertThat(size.delayMillis(), equalTo(AdaptiveBulkSize.MAX_DELAY_MILLIS));
+
+        // recover
+        for (int i = 0; i < 20; i++) {
+            size.onBulk(100, 0);
+        }
+        assertThat(size.delayMillis(), equalTo(0L));
+    }
+}
@@ -0,0 +1,40 @@
+package com.pannous.es.reindex;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ByteBudgetTest {
+
+    @Test public void blockIfFull() throws Exception {
+        final ByteBudget budget = new ByteBudget(100);
+        budget.acquire(60);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    budget.acquire(50);
+                    acquired.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS), equalTo(false));
+        budget.release(60);
+        assertThat(acquired.await(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(budget.used(), equalTo(50L));
+    }
+
+    @Test public void acceptOversizedIfEmpty() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        budget.acquire(500);
+        assertThat(budget.used(), equalTo(500L));
+        budget.release(500);
+        assertThat(budget.used(), equalTo(0L));
+    }
+}
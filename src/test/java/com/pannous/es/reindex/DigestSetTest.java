@@ -0,0 +1,33 @@
+package com.pannous.es.reindex;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class DigestSetTest {
+
+    @Test public void addAndGrow() {
+        DigestSet set = new DigestSet(0);
+        for (long i = 0; i < 1000; i++) {
+            assertThat(set.add(i * 31), equalTo(true));
+        }
+        assertThat(set.size(), equalTo(999));
+        for (long i = 0; i < 1000; i++) {
+            assertThat(set.contains(i * 31), equalTo(true));
+            assertThat(set.add(i * 31), equalTo(false));
+        }
+        assertThat(set.contains(1), equalTo(false));
+        assertThat(set.contains(-31), equalTo(false));
+    }
+
+    @Test public void hash() {
+        long hash = DigestSet.hash("tweets", "tweet", "1", new BytesArray("{ \"name\" : \"hello\" }"));
+        assertThat(DigestSet.hash("tweets", "tweet", "1", new BytesArray("{ \"name\" : \"hello\" }")), equalTo(hash));
+        assertThat(DigestSet.hash("tweets", "tweet", "1", new BytesArray("{ \"name\" : \"hallo\" }")), not(hash));
+        assertThat(DigestSet.hash("tweets", "tweet", "2", new BytesArray("{ \"name\" : \"hello\" }")), not(hash));
+        assertThat(DigestSet.hash("tweets", "tweet1", "", new BytesArray("{ \"name\" : \"hello\" }")),
+                not(DigestSet.hash("tweets", "tweet", "1", new BytesArray("{ \"name\" : \"hello\" }"))));
+    }
+}
@@ -0,0 +1,103 @@
+package com.pannous.es.reindex;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.testng.Assert.fail;
+
+public class DumpFileTest {
+
+    @Test public void writeAndRead() throws Exception {
+        File file = File.createTempFile("reindex", ".dump");
+        file.delete();
+        DumpFile dump = new DumpFile(file);
+        MySearchHitList hits = new MySearchHitList(3, 3);
+        hits.add(hit("1", null, 3, "{ \"name\" : \"hello\" }"));
+        hits.add(hit("2", "1", 5, "{ \"name\" : \"world\" }"));
+        dump.write(hits);
+        dump.close();
+        // appends to the existing file
+        hits = new MySearchHitList(1, 1);
+        hits.add(hit("3", null, 1, "{}"));
+        hits.add(hit(null, null, 1, "{}"));
+        dump.write(hits);
+        dump.close();
+        assertThat(dump.docs(), equalTo(3L));
+
+        MySearchResponseFile rsp = new MySearchResponseFile(file);
+        assertThat(rsp.hits().totalHits(), equalTo(3L));
+        assertThat(rsp.doScoll(), equalTo(2));
+        MySearchHit second = ((MySearchHitList) rsp.hits()).get(1);
+        assertThat(second.id(), equalTo("2"));
+        assertThat(second.parent(), equalTo("1"));
+        assertThat(second.version(), equalTo(5L));
+        assertThat(new String(second.source(), "UTF-8"), equalTo("{ \"name\" : \"world\" }"));
+        assertThat(((MySearchHitList) rsp.hits()).get(0).parent(), nullValue());
+        assertThat(rsp.doScoll(), equalTo(1));
+        assertThat(rsp.doScoll(), equalTo(0));
+        assertThat(rsp.bytes(), equalTo(file.length() - DumpFile.HEADER_BYTES));
+        file.delete();
+    }
+
+    @Test(expectedExceptions = RuntimeException.class) public void truncated() throws Exception {
+        File file = File.createTempFile("reindex", ".dump");
+        file.delete();
+        DumpFile dump = new DumpFile(file);
+        MySearchHitList hits = new MySearchHitList(1, 1);
+        hits.add(hit("1", null, 1, "{ \"name\" : \"hello\" }"));
+        dump.write(hits);
+        dump.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 2);
+        raf.close();
+        try {
+            new MySearchResponseFile(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test public void truncatedChunk() throws Exception {
+        File file = File.createTempFile("reindex", ".dump");
+        file.delete();
+        DumpFile dump = new DumpFile(file);
+        MySearchHitList hits = new MySearchHitList(1, 1);
+        hits.add(hit("1", null, 1, "{ \"name\" : \"hello\" }"));
+        dump.write(hits);
+        hits = new MySearchHitList(1, 1);
+        hits.add(hit("2", null, 1, "{ \"name\" : \"hello world, hello world, hello world\" }"));
+        dump.write(hits);
+        dump.close();
+
+        // cut the last chunk short but keep its header consistent with the file length
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long lastChunk = DumpFile.HEADER_BYTES;
+        raf.seek(lastChunk);
+        lastChunk += DumpFile.CHUNK_HEADER_BYTES + raf.readInt();
+        raf.seek(lastChunk);
+        int length = raf.readInt();
+        raf.seek(lastChunk);
+        raf.writeInt(length / 2);
+        raf.setLength(file.length() - length + length / 2);
+        raf.close();
+
+        MySearchResponseFile rsp = new MySearchResponseFile(file);
+        try {
+            assertThat(rsp.doScoll(), equalTo(1));
+            rsp.doScoll();
+            fail("the truncated chunk was read");
+        } catch (RuntimeException ex) {
+            assertThat(ex.getCause().getMessage(), containsString(" at " + lastChunk + " "));
+        } finally {
+            rsp.clearScroll();
+            file.delete();
+        }
+    }
+
+    private MySearchHit hit(String id, String parent, long version, String source) throws Exception {
+        return new MySearchResponseFile.MySearchHitFile(id, parent, version, source.getBytes("UTF-8"));
+    }
+}
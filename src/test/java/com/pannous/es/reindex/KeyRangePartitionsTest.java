@@ -0,0 +1,38 @@
+package com.pannous.es.reindex;
+
+import java.util.List;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class KeyRangePartitionsTest {
+
+    @Test public void splitLongs() {
+        KeyRangePartitions keyRanges = new KeyRangePartitions("count");
+        keyRanges.split(0L, 10L, 3);
+        List<KeyRangePartitions.Partition> partitions = keyRanges.partitions();
+        assertThat(partitions.size(), equalTo(3));
+        assertThat(partitions.get(0).filter(null), equalTo("{\"range\":{\"count\":{\"gte\":0,\"lt\":4}}}"));
+        assertThat(partitions.get(1).filter(null), equalTo("{\"range\":{\"count\":{\"gte\":4,\"lt\":7}}}"));
+        assertThat(partitions.get(2).filter(null), equalTo("{\"range\":{\"count\":{\"gte\":7,\"lte\":10}}}"));
+        assertThat(keyRanges.progress(), equalTo(0f));
+    }
+
+    @Test public void splitNarrowRange() {
+        KeyRangePartitions keyRanges = new KeyRangePartitions("count");
+        keyRanges.split(5L, 6L, 4);
+        assertThat(keyRanges.partitions().size(), equalTo(2));
+        keyRanges = new KeyRangePartitions("count");
+        keyRanges.split(5L, 5L, 4);
+        assertThat(keyRanges.partitions().size(), equalTo(1));
+        assertThat(keyRanges.partitions().get(0).filter(null), equalTo("{\"range\":{\"count\":{\"gte\":5,\"lte\":5}}}"));
+    }
+
+    @Test public void splitDoubles() {
+        KeyRangePartitions keyRanges = new KeyRangePartitions("price");
+        keyRanges.split(0.5, 1.5, 2);
+        assertThat(keyRanges.partitions().get(0).filter(null), equalTo("{\"range\":{\"price\":{\"gte\":0.5,\"lt\":1}}}"));
+        assertThat(keyRanges.partitions().get(1).filter(null), equalTo("{\"range\":{\"price\":{\"gte\":1,\"lte\":1.5}}}"));
+    }
+}
@@ -0,0 +1,71 @@
+package com.pannous.es.reindex;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * A request with the specified parameters and without content to call the
+ * rest methods directly.
+ */
+class MapRestRequest extends RestRequest {
+
+    private final Map<String, String> params = new HashMap<String, String>();
+
+    MapRestRequest put(String key, String value) {
+        params.put(key, value);
+        return this;
+    }
+
+    @Override public Method method() {
+        return Method.PUT;
+    }
+
+    @Override public String uri() {
+        return "/" + params.get("index") + "/" + params.get("type") + "/_reindex";
+    }
+
+    @Override public String rawPath() {
+        return uri();
+    }
+
+    @Override public boolean hasContent() {
+        return false;
+    }
+
+    @Override public boolean contentUnsafe() {
+        return false;
+    }
+
+    @Override public BytesReference content() {
+        return BytesArray.EMPTY;
+    }
+
+    @Override public String header(String name) {
+        return null;
+    }
+
+    @Override public Iterable<Map.Entry<String, String>> headers() {
+        return Collections.<String, String>emptyMap().entrySet();
+    }
+
+    @Override public boolean hasParam(String key) {
+        return params.containsKey(key);
+    }
+
+    @Override public String param(String key) {
+        return params.get(key);
+    }
+
+    @Override public String param(String key, String defaultValue) {
+        String value = params.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override public Map<String, String> params() {
+        return params;
+    }
+}
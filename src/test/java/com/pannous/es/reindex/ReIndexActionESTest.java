@@ -1,13 +1,190 @@
 package com.pannous.es.reindex;
 
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasAction;
+import org.elasticsearch.search.SearchHit;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
 
 public class ReIndexActionESTest extends ReIndexActionTester {
 
     @Override
     protected MySearchResponse scrollSearch(String index, String type, String query, int hits,
-            boolean withVersion, int keepMinutes) {
+            boolean withVersion, int keepMinutes, String preference) {
         SearchRequestBuilder srb = action.createScrollSearch(index, type, query, hits, withVersion, keepMinutes, client);
+        if (preference != null)
+            srb.setPreference(preference);
         return new MySearchResponseES(client, srb.execute().actionGet(), keepMinutes);
     }
+
+    @Test public void optimizedLoad() throws Exception {
+        client.admin().indices().prepareCreate("tweets").setSettings(ImmutableSettings.settingsBuilder().
+                put("index.number_of_replicas", 0).put("index.refresh_interval", "5s")).execute().actionGet();
+
+        OptimizedLoad load = OptimizedLoad.start(client, "tweets", ImmutableSettings.EMPTY);
+        assertThat(setting("tweets", OptimizedLoad.REFRESH_INTERVAL), equalTo("-1"));
+        assertThat(setting("tweets", OptimizedLoad.FLUSH_THRESHOLD_SIZE), equalTo("1gb"));
+        add("tweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+
+        load.restore();
+        assertThat(setting("tweets", OptimizedLoad.REFRESH_INTERVAL), equalTo("5s"));
+        assertThat(setting("tweets", OptimizedLoad.REPLICAS), equalTo("0"));
+        assertThat(setting("tweets", OptimizedLoad.FLUSH_THRESHOLD_SIZE), equalTo("200mb"));
+        load.finish(1, TimeValue.timeValueSeconds(10));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(1L));
+    }
+
+    @Test public void optimizedLoadIsGreenOnSingleNode() throws Exception {
+        client.admin().indices().prepareCreate("tweets").setSettings(ImmutableSettings.settingsBuilder().
+                put("index.number_of_replicas", 0)).execute().actionGet();
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        refresh("oldtweets");
+
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        ReIndexWithCreate action = new ReIndexWithCreate(emptySettings, client, new RestController(emptySettings));
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("optimizeLoad", "true").put("greenTimeout", "10s");
+        Method reindex = action.getClass().getDeclaredMethod("reindex", RestRequest.class, ReIndexJob.class,
+                String.class, List.class, List.class, Client.class);
+        reindex.setAccessible(true);
+        reindex.invoke(action, request, new ReIndexJob("test"), "tweet", Collections.singletonList("oldtweets"),
+                Collections.emptyList(), client);
+
+        assertThat(setting("tweets", OptimizedLoad.REPLICAS), equalTo("0"));
+        assertThat(setting("tweets", OptimizedLoad.REFRESH_INTERVAL), equalTo("1s"));
+        ClusterHealthResponse health = client.admin().cluster().prepareHealth("tweets").execute().actionGet();
+        assertThat(health.getStatus(), equalTo(ClusterHealthStatus.GREEN));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(1L));
+    }
+
+    @Test public void stats() throws Exception {
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        ReIndexJobs jobs = new ReIndexJobs(emptySettings);
+        ReIndexJobsAction jobsAction = new ReIndexJobsAction(emptySettings, client, new RestController(emptySettings), jobs);
+        final ReIndexJob job = new ReIndexJob("test");
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch stop = new CountDownLatch(1);
+        jobs.execute(job, new Runnable() {
+            @Override public void run() {
+                running.countDown();
+                try {
+                    stop.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        running.await();
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        jobsAction.writeStats(builder, ToXContent.EMPTY_PARAMS, client);
+        stop.countDown();
+
+        JSONObject stats = new JSONObject(builder.string());
+        JSONObject metrics = stats.getJSONArray("jobs").getJSONObject(0).getJSONObject("metrics");
+        assertThat(metrics.getJSONObject("bulk_latency").getLong("count"), equalTo(0L));
+        JSONObject node = stats.getJSONObject("nodes").getJSONObject("node1");
+        assertThat(node.getJSONObject("bulk").getLong("rejected"), equalTo(0L));
+        assertThat(node.getJSONObject("search").has("queue"), equalTo(true));
+    }
+
+    @Test public void throttleRunningJob() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        // the second page would wait for 10 seconds
+        ReIndexJobs jobs = new ReIndexJobs(ImmutableSettings.settingsBuilder().build());
+        final ReIndexJob job = action.createJob(new MapRestRequest().put("maxDocsPerSec", "1"));
+        final MySearchResponse rsp = scrollSearch("oldtweets", "tweet", "", 10, false, 1);
+        jobs.execute(job, new Runnable() {
+            @Override public void run() {
+                action.reindex(job, Collections.singletonList(rsp), "tweets", "tweet", client);
+            }
+        });
+        assertThat(job.awaitDone(500, TimeUnit.MILLISECONDS), equalTo(false));
+        ReIndexJobsAction.throttle(job, new MapRestRequest().put("maxDocsPerSec", "0").put("maxBytesPerSec", "1mb"));
+        assertThat(job.maxBytesPerSec(), equalTo((double) (1 << 20)));
+        assertThat(job.awaitDone(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(job.progress().collected(), equalTo(20L));
+        assertThat(job.tookMillis(), lessThan(5000L));
+    }
+
+    @Test public void groupBulksByShard() throws Exception {
+        client.admin().indices().prepareCreate("tweets").setSettings(ImmutableSettings.settingsBuilder().
+                put("index.number_of_shards", 3).put("index.number_of_replicas", 0)).execute().actionGet();
+        client.admin().cluster().prepareHealth("tweets").setWaitForGreenStatus().execute().actionGet();
+        for (int i = 0; i < 30; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        ReIndexJob job = action.createJob(new MapRestRequest().put("groupBulksBy", "shard").put("bulksPerGroup", "2"));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 30, false, 1)),
+                "tweets", "tweet", client);
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(30L));
+        assertThat(job.metrics().bulkLatency().count(), equalTo(3L));
+
+        // the computed shard is the shard of the indexed document
+        ClusterState state = client.admin().cluster().prepareState().execute().actionGet().getState();
+        for (int shard = 0; shard < 3; shard++) {
+            SearchResponse rsp = client.prepareSearch("tweets").setPreference("_shards:" + shard).setSize(30).
+                    execute().actionGet();
+            assertThat(rsp.getHits().hits().length, greaterThan(0));
+            for (SearchHit hit : rsp.getHits()) {
+                IndexRequest request = new IndexRequest("tweets", "tweet", hit.id());
+                assertThat(job.shardGroups().key(state, request), equalTo("tweets/" + shard));
+            }
+        }
+    }
+
+    @Test public void groupBulksOfAlias() throws Exception {
+        client.admin().indices().prepareCreate("tweets-v1").setSettings(ImmutableSettings.settingsBuilder().
+                put("index.number_of_shards", 3).put("index.number_of_replicas", 0)).execute().actionGet();
+        client.admin().indices().prepareAliases().addAlias("tweets-v1", "tweets").
+                addAliasAction(AliasAction.newAddAliasAction("tweets-v1", "routed").routing("user1")).
+                execute().actionGet();
+        ClusterState state = client.admin().cluster().prepareState().execute().actionGet().getState();
+        ShardGroups groups = new ShardGroups(ImmutableSettings.EMPTY, ShardGroups.By.SHARD, 1);
+        for (int i = 0; i < 20; i++) {
+            String id = Integer.toString(i);
+            int shard = groups.shardId(null, new IndexRequest("tweets-v1", "tweet", id), 3);
+            assertThat(groups.key(state, new IndexRequest("tweets", "tweet", id)), equalTo("tweets-v1/" + shard));
+            // the index routing of the alias decides the shard
+            int routed = groups.shardId("user1", new IndexRequest("tweets-v1", "tweet", id), 3);
+            assertThat(groups.key(state, new IndexRequest("routed", "tweet", id)), equalTo("tweets-v1/" + routed));
+        }
+        assertThat(groups.key(state, new IndexRequest("missing", "tweet", "1")), equalTo(ShardGroups.UNKNOWN));
+    }
+
+    private String setting(String index, String key) {
+        GetSettingsResponse rsp = client.admin().indices().prepareGetSettings(index).execute().actionGet();
+        return rsp.getSetting(index, key);
+    }
 }
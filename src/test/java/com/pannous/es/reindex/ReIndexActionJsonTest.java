@@ -1,12 +1,32 @@
 package com.pannous.es.reindex;
 
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
 public class ReIndexActionJsonTest extends ReIndexActionTester {
 
     @Override
     protected MySearchResponse scrollSearch(String searchIndex, String type, String filter, int hits,
-            boolean withVersion, int keepMinutes) {
+            boolean withVersion, int keepMinutes, String preference) {
         // System.err.println("you need to shutdown all local instances to run this test! " + getClass().getName());
         return new MySearchResponseJson("localhost", 9200, searchIndex, type, filter, "", hits,
-                withVersion, keepMinutes);
+                withVersion, keepMinutes, preference);
+    }
+
+    @Test public void reindexWithReadAhead() throws Exception {
+        for (int i = 0; i < 11; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        MySearchResponse rsp = new MySearchResponseJson("localhost", 9200, "oldtweets", "tweet", "", "", 2,
+                false, 1, null).readAhead(2);
+        int res = action.reindex(rsp, "tweets", "tweet", false, 0, client);
+        assertThat(res, equalTo(11));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(11L));
+        assertThat(rsp.doScoll(), equalTo(0));
     }
 }
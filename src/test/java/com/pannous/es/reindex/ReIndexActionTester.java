@@ -4,7 +4,9 @@ import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.count.CountRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
@@ -12,10 +14,16 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.hppc.cursors.ObjectCursor;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.sort.SortOrder;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -26,9 +34,18 @@ import static org.hamcrest.Matchers.*;
 import org.json.JSONObject;
 import org.testng.annotations.BeforeMethod;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This test will be called from the ElasticSearch and from the 'JSON'
@@ -43,7 +60,8 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
     // protected String indexNames = "oldtweets,tweets";
 
     @BeforeClass public void createNodes() throws Exception {
-        startNode("node1");
+        // the remote client requests compressed responses
+        startNode("node1", ImmutableSettings.settingsBuilder().put("http.compression", true));
         client = client("node1");
     }
 
@@ -62,8 +80,13 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         return scrollSearch(searchIndex, searchType, query, 10, false, 1);
     }
 
+    protected MySearchResponse scrollSearch(String searchIndex, String searchType,
+            String filter, int hits, boolean withVersion, int keepMinutes) {
+        return scrollSearch(searchIndex, searchType, filter, hits, withVersion, keepMinutes, null);
+    }
+
     protected abstract MySearchResponse scrollSearch(String searchIndex, String searchType,
-            String filter, int hits, boolean withVersion, int keepMinutes);
+            String filter, int hits, boolean withVersion, int keepMinutes, String preference);
 
     @Test public void reindexAll() throws Exception {
         add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
@@ -84,6 +107,20 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         assertThat(new JSONObject(sr.getHits().hits()[1].sourceAsString()).getString("name"), equalTo("peter ä test"));
     }
 
+    @Test public void reindexCompressedSource() throws Exception {
+        client.admin().indices().prepareCreate("oldtweets").addMapping("tweet",
+                "{ \"tweet\" : { \"_source\" : { \"compress\" : true } } }").execute().actionGet();
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        refresh("oldtweets");
+
+        int res = action.reindex(scrollSearch("oldtweets", "tweet", ""), "tweets", "tweet", false, 0, client);
+        assertThat(res, equalTo(1));
+        refresh("tweets");
+        SearchResponse sr = client.prepareSearch("tweets").execute().actionGet();
+        assertThat(sr.getHits().hits().length, equalTo(1));
+        assertThat(new JSONObject(sr.getHits().hits()[0].sourceAsString()).getString("name"), equalTo("hello world"));
+    }
+
     @Test public void reindexAllPartial() throws Exception {
         add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
         add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\", \"count\" : 2}");
@@ -98,6 +135,550 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         assertThat(new JSONObject(sr.getHits().hits()[0].sourceAsString()).getString("name"), equalTo("peter test"));
     }
 
+    @Test public void reindexPipelined() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+        assertThat(count("oldtweets"), equalTo(25L));
+
+        int res = action.reindex(scrollSearch("oldtweets", "tweet", "", 2, false, 1), "tweets", "tweet",
+                false, 0, 2, 3, client);
+        assertThat(res, equalTo(25));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(25L));
+    }
+
+    @Test public void reindexSliced() throws Exception {
+        client.admin().indices().prepareCreate("oldtweets").setSettings(ImmutableSettings.settingsBuilder().
+                put("index.number_of_shards", 3)).execute().actionGet();
+        for (int i = 0; i < 20; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        List<String> preferences = ReIndexAction.createShardPreferences(2, 3);
+        assertThat(preferences, contains("_shards:0,2", "_shards:1"));
+        List<MySearchResponse> slices = new ArrayList<MySearchResponse>();
+        for (String preference : preferences) {
+            slices.add(scrollSearch("oldtweets", "tweet", "", 3, false, 1, preference));
+        }
+        int res = action.reindex(slices, "tweets", "tweet", false, 0, 0, 1, client);
+        assertThat(res, equalTo(20));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(20L));
+    }
+
+    @Test public void reindexAdaptiveBulkSize() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        AdaptiveBulkSize bulkSize = new AdaptiveBulkSize(1000, 2, 4, 1 << 20);
+        ReIndexJob job = new ReIndexJob("test").bulkSize(bulkSize).bulkThreads(2);
+        int res = action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 10, false, 1)),
+                "tweets", "tweet", client);
+        assertThat(res, equalTo(25));
+        assertThat(bulkSize.bulkDocs(), lessThanOrEqualTo(4));
+        assertThat(job.metrics().bulkLatency().count(), greaterThanOrEqualTo(7L));
+        assertThat(job.metrics().scrollLatency().count(), greaterThanOrEqualTo(2L));
+        assertThat(job.metrics().queuedBulks(), equalTo(0));
+        assertThat(job.metrics().activeBulks(), equalTo(0));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(25L));
+    }
+
+    @Test public void reindexTransformed() throws Exception {
+        String id = add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"user\" : { \"name\" : \"peter\", \"age\" : 3 },"
+                + " \"tags\" : [\"a\", \"b\"]}");
+        refresh("oldtweets");
+
+        MapRestRequest request = new MapRestRequest().put("rename", "name:title,user.name:login").
+                put("remove", "user.age").put("set", "source:old,user.active:true");
+        ReIndexJob job = action.createJob(request);
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "")), "tweets", "tweet", client);
+        assertThat(job.progress().collected(), equalTo(1L));
+        refresh("tweets");
+
+        JSONObject source = new JSONObject(client.prepareGet("tweets", "tweet", id).execute().actionGet().
+                getSourceAsString());
+        assertThat(source.has("name"), equalTo(false));
+        assertThat(source.getString("title"), equalTo("hello world"));
+        assertThat(source.getString("source"), equalTo("old"));
+        assertThat(source.getJSONArray("tags").length(), equalTo(2));
+        JSONObject user = source.getJSONObject("user");
+        assertThat(user.getString("login"), equalTo("peter"));
+        assertThat(user.has("age"), equalTo(false));
+        assertThat(user.getString("active"), equalTo("true"));
+    }
+
+    @Test public void reindexWithByteLimits() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("large text ");
+        }
+        for (int i = 0; i < 10; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        add("oldtweets", "tweet", null, "{ \"name\" : \"" + text + "\", \"count\" : 10}");
+        refresh("oldtweets");
+
+        // the small documents fit into one bulk of 1kb, the large one is sent alone
+        MapRestRequest request = new MapRestRequest().put("bulkSizeMb", "0.001").put("maxBufferMb", "0.002").
+                put("bulkThreads", "2");
+        ReIndexJob job = action.createJob(request);
+        assertThat(job.bulkBytes(), equalTo(1049L));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 100, false, 1)),
+                "tweets", "tweet", client);
+        assertThat(job.progress().collected(), equalTo(11L));
+        assertThat(job.metrics().bulkLatency().count(), greaterThanOrEqualTo(2L));
+        assertThat(job.buffer().used(), equalTo(0L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(11L));
+    }
+
+    @Test public void reindexCallbackInParallel() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        action = new ReIndexAction(emptySettings, client, new RestController(emptySettings)) {
+            @Override protected MySearchHits callback(MySearchHits hits) {
+                threads.add(Thread.currentThread().getName());
+                // drops the documents with an odd count
+                MySearchHitList res = new MySearchHitList(10, hits.totalHits());
+                for (MySearchHit hit : hits.getHits()) {
+                    Map<String, Object> source = XContentHelper.convertToMap(hit.source(), false).v2();
+                    if (((Number) source.get("count")).intValue() % 2 == 0)
+                        res.add(hit);
+                }
+                return res;
+            }
+        };
+        ReIndexJob job = action.createJob(new MapRestRequest().put("callbackThreads", "4").put("keepOrder", "false"));
+        assertThat(job.callbackThreads(), equalTo(4));
+        assertThat(job.keepCallbackOrder(), equalTo(false));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 20, false, 1)),
+                "tweets", "tweet", client);
+        assertThat(job.progress().collected(), equalTo(20L));
+        assertThat(threads.size(), greaterThan(1));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(10L));
+    }
+
+    @Test public void reindexKeyRanges() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        add("oldtweets", "tweet", null, "{ \"name\" : \"no count\" }");
+        refresh("oldtweets");
+
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("hitsPerPage", "3").put("readers", "3").
+                put("partitionField", "count");
+        ReIndexJob job = action.createJob(request);
+        assertThat(job.keySpaceProgress(), equalTo(-1f));
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().collected(), equalTo(21L));
+        assertThat(job.keySpaceProgress(), equalTo(1f));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(21L));
+    }
+
+    @Test public void reindexKeyRangesOfCustomDateFormat() throws Exception {
+        client.admin().indices().prepareCreate("oldtweets").addMapping("tweet",
+                "{ \"tweet\" : { \"properties\" : { \"published\" : { \"type\" : \"date\", \"format\" : \"yyyy/MM/dd\" } } } }").execute().actionGet();
+        for (int i = 1; i <= 20; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"published\" : \"2014/03/" + (i < 10 ? "0" : "") + i + "\"}");
+        }
+        refresh("oldtweets");
+
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("hitsPerPage", "3").put("readers", "3").
+                put("partitionField", "published");
+        ReIndexJob job = action.createJob(request);
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().collected(), equalTo(20L));
+        assertThat(job.keySpaceProgress(), equalTo(1f));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(20L));
+    }
+
+    @Test public void dumpAndLoad() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        File file = File.createTempFile("reindex", ".dump");
+        file.delete();
+        ReIndexJob job = action.createJob(new MapRestRequest().put("dumpFile", file.getPath()));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 10, false, 1)),
+                "tweets", "tweet", client);
+        assertThat(job.progress().collected(), equalTo(25L));
+        assertThat(client.admin().indices().prepareExists("tweets").execute().actionGet().isExists(), equalTo(false));
+
+        // the dump can be loaded several times
+        for (String index : new String[]{"tweets", "tweets2"}) {
+            MapRestRequest request = new MapRestRequest().put("index", index).put("type", "tweet").
+                    put("loadFile", file.getPath());
+            job = action.createJob(request);
+            action.reindex(request, job, null, client);
+            assertThat(job.progress().total(), equalTo(25L));
+            assertThat(job.progress().collected(), equalTo(25L));
+            refresh(index);
+            assertThat(count(index), equalTo(25L));
+        }
+        file.delete();
+    }
+
+    @Test public void reindexSkipUnchanged() throws Exception {
+        String id = add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        for (int i = 2; i <= 10; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("skipUnchanged", "true");
+        ReIndexJob job = action.createJob(request);
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().skipped(), equalTo(0L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(10L));
+
+        // one changed and one new document
+        client.prepareIndex("oldtweets", "tweet", id).setSource("{ \"name\" : \"changed\", \"count\" : 1}").
+                execute().actionGet();
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 11}");
+        refresh("oldtweets");
+        job = action.createJob(request);
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().collected(), equalTo(11L));
+        assertThat(job.progress().skipped(), equalTo(9L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(11L));
+        assertThat(client.prepareGet("tweets", "tweet", id).execute().actionGet().getSourceAsString(),
+                containsString("changed"));
+    }
+
+    @Test public void reindexSkipUnchangedIntoAlias() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+        client.admin().indices().prepareCreate("tweets-v1").execute().actionGet();
+        client.admin().indices().aliases(new IndicesAliasesRequest().addAlias("tweets", "tweets-v1")).actionGet();
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("skipUnchanged", "true");
+        action.reindex(request, action.createJob(request), null, client);
+        refresh("tweets-v1");
+        assertThat(count("tweets-v1"), equalTo(5L));
+
+        ReIndexJob job = action.createJob(request);
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().skipped(), equalTo(5L));
+    }
+
+    @Test public void reindexExternalVersionAndCreate() throws Exception {
+        String id = add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 2}");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 3}");
+        refresh("oldtweets");
+        // the target has a newer version of one document, e.g. from a concurrent writer
+        client.prepareIndex("tweets", "tweet", id).setSource("{ \"name\" : \"newer\" }").setVersion(10).
+                setVersionType(VersionType.EXTERNAL).execute().actionGet();
+
+        ReIndexJob job = action.createJob(new MapRestRequest().put("versionType", "external"));
+        assertThat(job.withVersion(), equalTo(true));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 10, true, 1)),
+                "tweets", "tweet", client);
+        assertThat(job.progress().versionConflicts(), equalTo(1L));
+        assertThat(job.progress().failed(), equalTo(0L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(3L));
+        assertThat(client.prepareGet("tweets", "tweet", id).execute().actionGet().getSourceAsString(),
+                containsString("newer"));
+
+        // with create all documents exist already
+        job = action.createJob(new MapRestRequest().put("opType", "create"));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "")), "tweets", "tweet", client);
+        assertThat(job.progress().versionConflicts(), equalTo(3L));
+        assertThat(job.progress().failed(), equalTo(0L));
+    }
+
+    @Test public void deadLetterFile() throws Exception {
+        client.admin().indices().prepareCreate("tweets").addMapping("tweet",
+                "{ \"tweet\" : { \"properties\" : { \"published\" : { \"type\" : \"date\" } } } }").
+                execute().actionGet();
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\", \"published\" : \"no date\"}");
+        refresh("oldtweets");
+
+        File file = File.createTempFile("reindex", ".json");
+        file.delete();
+        ReIndexJob job = new ReIndexJob("test").deadLetterFile(file);
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "")), "tweets", "tweet", client);
+        assertThat(job.progress().failed(), equalTo(1L));
+        assertThat(job.progress().retried(), equalTo(0L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(1L));
+
+        String content = Streams.copyToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        file.delete();
+        String[] lines = content.split("\n");
+        assertThat(lines.length, equalTo(2));
+        assertThat(new JSONObject(lines[0]).getJSONObject("index").getString("_index"), equalTo("tweets"));
+        assertThat(new JSONObject(lines[1]).getString("name"), equalTo("peter test"));
+    }
+
+    @Test public void deadLetterFileWithExternalVersion() throws Exception {
+        client.admin().indices().prepareCreate("tweets").addMapping("tweet",
+                "{ \"tweet\" : { \"properties\" : { \"published\" : { \"type\" : \"date\" } } } }").
+                execute().actionGet();
+        add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\", \"published\" : \"no date\"}");
+        refresh("oldtweets");
+
+        File file = File.createTempFile("reindex", ".json");
+        file.delete();
+        ReIndexJob job = new ReIndexJob("test").deadLetterFile(file).versionType(VersionType.EXTERNAL).
+                opType(IndexRequest.OpType.CREATE);
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 10, true, 1)),
+                "tweets", "tweet", client);
+        assertThat(job.progress().failed(), equalTo(1L));
+
+        byte[] content = Streams.copyToByteArray(file);
+        file.delete();
+        // the file can be fed to the bulk API with the same versioning
+        BulkRequest bulk = new BulkRequest().add(content, 0, content.length, false);
+        IndexRequest request = (IndexRequest) bulk.requests().get(0);
+        assertThat(request.versionType(), equalTo(VersionType.EXTERNAL));
+        assertThat(request.version(), equalTo(1L));
+        assertThat(request.opType(), equalTo(IndexRequest.OpType.CREATE));
+    }
+
+    @Test public void retriesOfCancelledJobAreDeadLettered() throws Exception {
+        File file = File.createTempFile("reindex", ".json");
+        file.delete();
+        ReIndexJob job = new ReIndexJob("test").deadLetterFile(file).retries(3, 60000);
+        job.retries().offer(new IndexRequest("tweets", "tweet", "1").source("{ \"name\" : \"hello world\" }"),
+                0, RestStatus.TOO_MANY_REQUESTS);
+        job.cancel();
+        action.flushRetries(job, client);
+        assertThat(job.progress().failed(), equalTo(1L));
+        assertThat(job.retries().isEmpty(), is(true));
+
+        String content = Streams.copyToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        file.delete();
+        assertThat(new JSONObject(content.split("\n")[0]).getJSONObject("index").getString("_id"), equalTo("1"));
+    }
+
+    @Test public void keepRetriesAndFilesUntilJobEnds() throws Exception {
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\" }");
+        add("oldtweets2", "tweet", null, "{ \"name\" : \"peter test\" }");
+        refresh("oldtweets");
+        refresh("oldtweets2");
+
+        File file = File.createTempFile("reindex", ".json");
+        file.delete();
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets,oldtweets2").put("deadLetterFile", file.getPath()).
+                put("retryBackoffMillis", "60000");
+        ReIndexJob job = action.createJob(request);
+        job.retries().offer(new IndexRequest("tweets", "tweet", "1").source("{ \"name\" : \"retry\" }"),
+                0, RestStatus.TOO_MANY_REQUESTS);
+        action.reindex(request, job, null, client);
+        // the retry is not due yet and waits for the end of the job instead of the end of every search index
+        assertThat(job.progress().collected(), equalTo(2L));
+        assertThat(job.retries().size(), equalTo(1));
+        assertThat(job.progress().failed(), equalTo(0L));
+
+        action.finish(job);
+        assertThat(job.retries().isEmpty(), is(true));
+        assertThat(job.progress().failed(), equalTo(1L));
+        String content = Streams.copyToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        file.delete();
+        assertThat(new JSONObject(content.split("\n")[0]).getJSONObject("index").getString("_id"), equalTo("1"));
+    }
+
+    @Test public void retryRejectedBulkWithoutAdaptiveSize() throws Exception {
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\" }");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\" }");
+        refresh("oldtweets");
+
+        final AtomicInteger bulks = new AtomicInteger();
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        action = new ReIndexAction(emptySettings, client, new RestController(emptySettings)) {
+            @Override BulkResult bulkUpdate(List<IndexRequest> requests, Client client) {
+                if (bulks.incrementAndGet() <= 2)
+                    throw new EsRejectedExecutionException("bulk queue is full");
+                return super.bulkUpdate(requests, client);
+            }
+        };
+        ReIndexJob job = new ReIndexJob("test").retries(2, 1);
+        assertThat(job.bulkSize(), nullValue());
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "")), "tweets", "tweet", client);
+        assertThat(bulks.get(), equalTo(3));
+        assertThat(job.progress().failed(), equalTo(0L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(2L));
+    }
+
+    @Test public void failedTransformIsDeadLettered() throws Exception {
+        // the first document maps published as string
+        add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\", \"published\" : \"no date\"}");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"published\" : \"2026-10-01\"}");
+        refresh("oldtweets");
+
+        File file = File.createTempFile("reindex", ".json");
+        file.delete();
+        ReIndexJob job = action.createJob(new MapRestRequest().put("indexTemplate", "tweets-{published|yyyy.MM}").
+                put("deadLetterFile", file.getPath()));
+        action.reindex(job, Collections.singletonList(scrollSearch("oldtweets", "tweet", "")), "tweets", "tweet", client);
+        assertThat(job.progress().failed(), equalTo(1L));
+        refresh("tweets-2026.10");
+        assertThat(count("tweets-2026.10"), equalTo(1L));
+
+        String content = Streams.copyToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        file.delete();
+        String[] lines = content.split("\n");
+        assertThat(lines.length, equalTo(2));
+        assertThat(new JSONObject(lines[0]).getJSONObject("index").getString("_index"), equalTo("tweets"));
+        assertThat(new JSONObject(lines[1]).getString("name"), equalTo("peter test"));
+    }
+
+    @Test public void resumeFromCheckpoint() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("hitsPerPage", "3").
+                put("checkpoint", "resume").put("checkpointIntervalSeconds", "0");
+        // stop the first job after one page as if the node went down
+        final ReIndexJob job1 = action.createJob(request);
+        ReIndexAction stoppingAction = new ReIndexAction(ImmutableSettings.settingsBuilder().build(), client, null) {
+            @Override protected MySearchHits callback(MySearchHits hits) {
+                job1.cancel();
+                return hits;
+            }
+        };
+        stoppingAction.reindex(request, job1, null, client);
+        assertThat(job1.progress().collected(), equalTo(3L));
+
+        ReIndexJob job2 = action.createJob(request);
+        action.reindex(request, job2, null, client);
+        assertThat(job2.progress().collected(), equalTo(10L));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(10L));
+
+        // a finished checkpoint is skipped
+        ReIndexJob job3 = action.createJob(request);
+        action.reindex(request, job3, null, client);
+        assertThat(job3.progress().collected(), equalTo(0L));
+    }
+
+    @Test public void catchUpChangedDocuments() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("type", "tweet").
+                put("searchIndex", "oldtweets").put("hitsPerPage", "2").put("timestampField", "count");
+        // simulate a write into the old index while the first pass is running
+        ReIndexAction liveAction = new ReIndexAction(ImmutableSettings.settingsBuilder().build(), client, null) {
+            boolean written;
+
+            @Override protected MySearchHits callback(MySearchHits hits) {
+                if (!written) {
+                    written = true;
+                    add("oldtweets", "tweet", null, "{ \"name\" : \"new tweet\", \"count\" : 10}");
+                    refresh("oldtweets");
+                }
+                return hits;
+            }
+        };
+        liveAction.reindex(request, action.createJob(request), null, client);
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(6L));
+    }
+
+    @Test public void reindexAsync() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : " + i + "}");
+        }
+        refresh("oldtweets");
+
+        ReIndexJobs jobs = new ReIndexJobs(ImmutableSettings.settingsBuilder().build());
+        final ReIndexJob job = new ReIndexJob("test").bulkThreads(2);
+        final List<MySearchResponse> slices = Collections.singletonList(scrollSearch("oldtweets", "tweet", "", 2, false, 1));
+        jobs.execute(job, new Runnable() {
+            @Override public void run() {
+                action.reindex(job, slices, "tweets", "tweet", client);
+            }
+        });
+        assertThat(job.awaitDone(30, TimeUnit.SECONDS), is(true));
+        assertThat(job.state(), equalTo(ReIndexJob.State.FINISHED));
+        assertThat(job.progress().collected(), equalTo(5L));
+        assertThat(job.etaSeconds(), equalTo(0L));
+        assertThat(jobs.get(job.id()), sameInstance(job));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(5L));
+    }
+
+    @Test public void cancelJob() throws Exception {
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        refresh("oldtweets");
+
+        ReIndexJobs jobs = new ReIndexJobs(ImmutableSettings.settingsBuilder().build());
+        final ReIndexJob job = new ReIndexJob("test");
+        final List<MySearchResponse> slices = Collections.singletonList(scrollSearch("oldtweets", "tweet", ""));
+        assertThat(job.cancel(), is(true));
+        jobs.run(job, new Runnable() {
+            @Override public void run() {
+                action.reindex(job, slices, "tweets", "tweet", client);
+            }
+        });
+        assertThat(job.state(), equalTo(ReIndexJob.State.CANCELLED));
+        assertThat(job.progress().collected(), equalTo(0L));
+        assertThat(job.cancel(), is(false));
+    }
+
+    @Test public void cancelJobOfScrollWhichCannotBeCleared() throws Exception {
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        refresh("oldtweets");
+
+        // an implementation outside of the plugin which only has the methods of MySearchResponse
+        final MySearchResponse scroll = scrollSearch("oldtweets", "tweet", "");
+        MySearchResponse external = new MySearchResponse() {
+            @Override public MySearchHits hits() {
+                return scroll.hits();
+            }
+
+            @Override public String scrollId() {
+                return scroll.scrollId();
+            }
+
+            @Override public int doScoll() {
+                return scroll.doScoll();
+            }
+
+            @Override public long bytes() {
+                return scroll.bytes();
+            }
+        };
+        ReIndexJob job = new ReIndexJob("test");
+        job.cancel();
+        action.reindex(job, Collections.singletonList(external), "tweets", "tweet", client);
+        assertThat(job.progress().collected(), equalTo(0L));
+        ((ClearableScroll) scroll).clearScroll();
+    }
+
     @Test public void reindexChilds() throws Exception {
          String parent = add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
          // update the mapping settings for oldtweets childs (i.e retweet type)
@@ -130,6 +711,93 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         assertThat(child_sr.getHits().hits().length, equalTo(1));
     }
 
+    @Test public void reindexTypesInParallel() throws Exception {
+        add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
+        add("oldtweets", "tweet", null, "{ \"name\" : \"peter test\", \"count\" : 2}");
+        add("oldtweets", "user", null, "{ \"name\" : \"peter\" }");
+        add("oldtweets", "note", null, "{ \"text\" : \"hello\" }");
+        add("oldtweets", "draft", null, "{ \"text\" : \"skipped\" }");
+        refresh("oldtweets");
+
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        ReIndexWithCreate action = new ReIndexWithCreate(emptySettings, client, new RestController(emptySettings));
+        MapRestRequest request = new MapRestRequest().put("index", "tweets").put("searchIndex", "oldtweets").
+                put("typeThreads", "2").put("bulkThreads", "2");
+        ReIndexJob job = new ReIndexJob("test").bulkThreads(2);
+        Method reindexTypes = action.getClass().getDeclaredMethod("reindexTypes", RestRequest.class, ReIndexJob.class,
+                String.class, List.class, List.class, Client.class);
+        reindexTypes.setAccessible(true);
+        reindexTypes.invoke(action, request, job, "*", Collections.singletonList("oldtweets"),
+                Collections.singletonList("draft"), client);
+        assertThat(job.progress().collected(), equalTo(4L));
+        assertThat(job.bulkPermits().availablePermits(), equalTo(2));
+        refresh("tweets");
+        assertThat(count("tweets"), equalTo(4L));
+    }
+
+    @Test public void reindexIndexPattern() throws Exception {
+        add("logs-2026.09.01", "log", null, "{ \"message\" : \"a\", \"time\" : \"2026-09-01T10:00:00Z\" }");
+        add("logs-2026.09.02", "log", null, "{ \"message\" : \"b\", \"time\" : \"2026-09-02T10:00:00Z\" }");
+        add("logs-2026.10.01", "log", null, "{ \"message\" : \"c\", \"time\" : \"2026-10-01T10:00:00Z\" }");
+        add("logs-2026.10.01", "log", null, "{ \"message\" : \"no time\" }");
+        add("other", "log", null, "{ \"message\" : \"d\" }");
+        refresh("_all");
+
+        MapRestRequest request = new MapRestRequest().put("index", "logs-unknown").put("type", "log").
+                put("searchIndex", "logs-2026.*").put("indexThreads", "2").
+                put("indexTemplate", "logs-{time|yyyy.MM}");
+        ReIndexJob job = action.createJob(request);
+        action.reindex(request, job, null, client);
+        assertThat(job.progress().collected(), equalTo(4L));
+        refresh("_all");
+        assertThat(count("logs-2026.09"), equalTo(2L));
+        assertThat(count("logs-2026.10"), equalTo(1L));
+        assertThat(count("logs-unknown"), equalTo(1L));
+    }
+
+    @Test public void reindexPatternAndDeleteWithCreate() throws Exception {
+        add("logs-2026.09.01", "log", null, "{ \"message\" : \"a\" }");
+        add("logs-2026.09.02", "log", null, "{ \"message\" : \"b\" }");
+        String copied = add("logs-2026.09", "log", null, "{ \"message\" : \"already copied\" }");
+        add("logs-2026.10.01", "log", null, "{ \"message\" : \"c\" }");
+        client.admin().indices().aliases(new IndicesAliasesRequest().addAlias("logs", "logs-2026.09.01")).actionGet();
+        refresh("_all");
+
+        // the target is not read from a list or pattern, only as the single search index
+        List<String> searchIndices = ReIndexAction.resolveIndices("logs-2026.09*", "logs-2026.09", true, client);
+        assertThat(searchIndices, contains("logs-2026.09.01", "logs-2026.09.02"));
+        assertThat(ReIndexAction.resolveIndices("logs-2026.09", "logs-2026.09", true, client), contains("logs-2026.09"));
+        try {
+            ReIndexAction.resolveIndices("logs-2026.09,logs-2026.09", "logs-2026.09", true, client);
+            assertThat("the target cannot be the only index of a list", false);
+        } catch (IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), containsString("except the target index logs-2026.09"));
+        }
+
+        Settings emptySettings = ImmutableSettings.settingsBuilder().build();
+        ReIndexWithCreate withCreate = new ReIndexWithCreate(emptySettings, client, new RestController(emptySettings));
+        Method reindex = withCreate.getClass().getDeclaredMethod("reindex", RestRequest.class, ReIndexJob.class,
+                String.class, List.class, List.class, Client.class);
+        reindex.setAccessible(true);
+        MapRestRequest request = new MapRestRequest().put("index", "logs-2026.09").put("type", "log").
+                put("searchIndex", "logs-2026.09*").put("delete", "true").put("copyAliases", "true");
+        // the target has one document more than the search indices => they are kept
+        reindex.invoke(withCreate, request, action.createJob(request), "log", searchIndices,
+                Collections.emptyList(), client);
+        assertThat(count("logs-2026.09"), equalTo(3L));
+        assertThat(count("logs-2026.09.01"), equalTo(1L));
+        assertThat(getAliasesNames("logs-2026.09"), contains("logs"));
+
+        // the counts match => exactly the resolved search indices are deleted
+        client.prepareDelete("logs-2026.09", "log", copied).execute().actionGet();
+        reindex.invoke(withCreate, request, action.createJob(request), "log", searchIndices,
+                Collections.emptyList(), client);
+        assertThat(exists("logs-2026.09.01"), is(false));
+        assertThat(exists("logs-2026.09.02"), is(false));
+        assertThat(exists("logs-2026.10.01"), is(true));
+        assertThat(count("logs-2026.09"), equalTo(2L));
+    }
+
     @Test public void copyAliases() throws Exception {
         add("oldtweets", "tweet", null, "{ \"name\" : \"hello world\", \"count\" : 1}");
         add("tweets", "tweet", null, "{ \"name\" : \"peter ä test\", \"count\" : 2}");
@@ -146,14 +814,14 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         RestController contrl = new RestController(emptySettings);
         ReIndexWithCreate action = new ReIndexWithCreate(emptySettings, client, contrl);
 
-        Method copyAliases = action.getClass().getDeclaredMethod("copyAliases", String.class, String.class, Boolean.class, Client.class);
+        Method copyAliases = action.getClass().getDeclaredMethod("copyAliases", String.class, List.class, Boolean.class, Client.class);
         copyAliases.setAccessible(true);
-        copyAliases.invoke(action, "tweets", "oldtweets", false, client);
+        copyAliases.invoke(action, "tweets", Collections.singletonList("oldtweets"), false, client);
         List<String> createdAliases = getAliasesNames("tweets");
         assertThat(oldAliases, equalTo(createdAliases));
     }
 
-    private String add(String index, String type, String routing, String json) {
+    protected String add(String index, String type, String routing, String json) {
         IndexRequestBuilder req =  client.prepareIndex(index, type).setSource(json);
         if (routing != null) 
             req.setRouting(routing);
@@ -162,7 +830,7 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         return rsp.getId();
     }
 
-    private void refresh(String index) {
+    protected void refresh(String index) {
         client.admin().indices().refresh(new RefreshRequest(index)).actionGet();
     }
 
@@ -178,7 +846,11 @@ public abstract class ReIndexActionTester extends AbstractNodesTests {
         return aliases;
     }
 
-    private long count(String index) {
+    protected boolean exists(String index) {
+        return client.admin().indices().prepareExists(index).execute().actionGet().isExists();
+    }
+
+    protected long count(String index) {
         return client.count(new CountRequest(index)).actionGet().getCount();
     }
 }
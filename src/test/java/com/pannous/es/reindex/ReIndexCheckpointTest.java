@@ -0,0 +1,41 @@
+package com.pannous.es.reindex;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ReIndexCheckpointTest {
+
+    @Test public void moveForwardOnlyToCompletedBatches() {
+        ReIndexCheckpoint checkpoint = new ReIndexCheckpoint(null, "test", "tweet", Long.MAX_VALUE);
+        ReIndexCheckpoint.Slice slice = checkpoint.slice("_all");
+        long first = slice.dispatched("a", 2);
+        long second = slice.dispatched("b", 3);
+        slice.done(second);
+        assertThat(slice.lastId(), nullValue());
+
+        slice.done(first);
+        assertThat(slice.lastId(), equalTo("b"));
+        assertThat(slice.collected(), equalTo(5L));
+    }
+
+    @Test public void keepBatchWithQueuedRetries() {
+        ReIndexCheckpoint checkpoint = new ReIndexCheckpoint(null, "test", "tweet", Long.MAX_VALUE);
+        ReIndexCheckpoint.Slice slice = checkpoint.slice("_all");
+        long first = slice.dispatched("a", 2);
+        long second = slice.dispatched("b", 3);
+        RetryQueue.Owner batch = slice.batch(first);
+        batch.retryQueued();
+        batch.retryQueued();
+        slice.done(first);
+        slice.done(second);
+        assertThat(slice.lastId(), nullValue());
+
+        batch.retryResolved();
+        assertThat(slice.lastId(), nullValue());
+        batch.retryResolved();
+        assertThat(slice.lastId(), equalTo("b"));
+        assertThat(slice.collected(), equalTo(5L));
+    }
+}
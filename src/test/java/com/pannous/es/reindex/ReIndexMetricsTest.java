@@ -0,0 +1,47 @@
+package com.pannous.es.reindex;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ReIndexMetricsTest {
+
+    @Test public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.percentile(0.5), equalTo(0L));
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        assertThat(histogram.count(), equalTo(100L));
+        assertThat(histogram.max(), equalTo(100L));
+        assertThat(histogram.mean(), equalTo(50.5f));
+        // the buckets are at most 19% too high
+        assertThat(histogram.percentile(0.5), allOf(greaterThanOrEqualTo(50L), lessThanOrEqualTo(60L)));
+        assertThat(histogram.percentile(0.99), allOf(greaterThanOrEqualTo(99L), lessThanOrEqualTo(100L)));
+        histogram.add(1000000);
+        assertThat(histogram.percentile(1), equalTo(1000000L));
+    }
+
+    @Test public void buckets() {
+        for (long millis : new long[]{1, 2, 3, 7, 100, 12345, 1 << 20}) {
+            int bucket = LatencyHistogram.bucket(millis);
+            assertThat(LatencyHistogram.upperBound(bucket), greaterThanOrEqualTo(millis));
+            assertThat(LatencyHistogram.upperBound(bucket), lessThanOrEqualTo(Math.round(millis * 1.19) + 1));
+        }
+    }
+
+    @Test public void slidingRate() {
+        ReIndexMetrics.SlidingRate rate = new ReIndexMetrics.SlidingRate();
+        long now = 1000000000L;
+        for (int second = 0; second < 20; second++) {
+            rate.add(100, now + second * 1000);
+        }
+        // the current second is incomplete and not counted
+        assertThat(rate.rate(10, now + 19 * 1000), equalTo(100f));
+        assertThat(rate.rate(60, now + 20 * 1000), equalTo(2000f / 60));
+        // old seconds are overwritten
+        rate.add(50, now + 80 * 1000);
+        assertThat(rate.rate(60, now + 81 * 1000), equalTo(50f / 60));
+    }
+}
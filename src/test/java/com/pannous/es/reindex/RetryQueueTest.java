@@ -0,0 +1,41 @@
+package com.pannous.es.reindex;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RetryQueueTest {
+
+    @Test public void retryOnlyTemporaryFailures() {
+        RetryQueue queue = new RetryQueue(3, 1);
+        assertThat(queue.offer(new IndexRequest("tweets"), 0, RestStatus.BAD_REQUEST), is(false));
+        assertThat(queue.offer(new IndexRequest("tweets"), 0, RestStatus.TOO_MANY_REQUESTS), is(true));
+        assertThat(queue.offer(new IndexRequest("tweets"), 3, RestStatus.TOO_MANY_REQUESTS), is(false));
+        assertThat(queue.size(), equalTo(1));
+    }
+
+    @Test public void backOff() throws Exception {
+        RetryQueue queue = new RetryQueue(5, 10000);
+        queue.offer(new IndexRequest("tweets"), 0, RestStatus.SERVICE_UNAVAILABLE);
+        assertThat(queue.pollDue(10).isEmpty(), is(true));
+
+        queue = new RetryQueue(5, 1);
+        IndexRequest req = new IndexRequest("tweets");
+        queue.offer(req, 2, RestStatus.SERVICE_UNAVAILABLE);
+        RetryQueue.Retry retry = queue.poll(1000);
+        assertThat(retry.request, sameInstance(req));
+        assertThat(retry.attempts, equalTo(3));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test public void clearAlsoRemovesRetriesNotDue() {
+        RetryQueue queue = new RetryQueue(5, 10000);
+        queue.offer(new IndexRequest("tweets"), 0, RestStatus.SERVICE_UNAVAILABLE);
+        queue.offer(new IndexRequest("tweets"), 1, RestStatus.TOO_MANY_REQUESTS);
+        assertThat(queue.clear().size(), equalTo(2));
+        assertThat(queue.isEmpty(), is(true));
+    }
+}
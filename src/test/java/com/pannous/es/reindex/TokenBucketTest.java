@@ -0,0 +1,71 @@
+package com.pannous.es.reindex;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TokenBucketTest {
+
+    @Test public void limitRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(100);
+        long start = System.nanoTime();
+        // the first second is in the bucket
+        bucket.acquire(100);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(100L));
+        bucket.acquire(30);
+        bucket.acquire(20);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(400L));
+    }
+
+    @Test public void unlimited() throws Exception {
+        TokenBucket bucket = new TokenBucket(0);
+        long start = System.nanoTime();
+        bucket.acquire(Long.MAX_VALUE);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(100L));
+    }
+
+    @Test public void changeRateWhileWaiting() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1);
+        bucket.acquire(1);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    bucket.acquire(100);
+                    acquired.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        assertThat(acquired.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+        bucket.rate(0);
+        assertThat(acquired.await(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(bucket.rate(), equalTo(0d));
+    }
+
+    @Test public void cancelJobWhileWaiting() throws Exception {
+        final ReIndexJob job = new ReIndexJob("test").maxDocsPerSec(1);
+        job.throttle(1, 0);
+        final CountDownLatch throttled = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    job.throttle(100, 0);
+                    throttled.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        assertThat(throttled.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+        assertThat(job.cancel(), equalTo(true));
+        assertThat(throttled.await(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(job.maxDocsPerSec(), equalTo(1d));
+    }
+}